@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the Castle nodes that route on the Castle response stored in shared state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CastleDecisionNodeBenchmark {
+
+    /** The recorded response the nodes route on: a risky login with signals, or a clean one without. */
+    @Param({"risk-response.json", "filter-response.json"})
+    public String response;
+
+    private TreeContext context;
+    private CastleSignalNode signalNode;
+    private CastleScoreNode scoreNode;
+    private CastleScoreNode scoreBandNode;
+    private CastleActionNode actionNode;
+    private CastleDecisionNode decisionNode;
+
+    @Setup
+    public void setUp() throws NodeProcessException {
+        context = CastleFixtures.decisionContext(
+                CastleResponseMapper.map(CastleFixtures.recordedResponse(response), false));
+        List<String> signalOutcomes = Arrays.asList("#bot_behavior", "#impossible_travel", "#proxy_ip",
+                "#multiple_accounts_per_device");
+        signalNode = new CastleSignalNode(() -> signalOutcomes);
+        scoreNode = new CastleScoreNode(new CastleScoreNode.Config() {
+        });
+        scoreBandNode = new CastleScoreNode(new CastleScoreNode.Config() {
+            @Override
+            public List<String> scoreBands() {
+                return Arrays.asList("0.3", "0.6", "0.9");
+            }
+        });
+        actionNode = new CastleActionNode();
+        List<String> rules = Arrays.asList("Deny: action = deny", "Deny: risk >= 0.9 & signal = #bot_behavior",
+                "Challenge: risk >= 0.6", "Challenge: signal = #impossible_travel|#proxy_ip", "Allow:");
+        decisionNode = new CastleDecisionNode(() -> rules);
+    }
+
+    @Benchmark
+    public Action signalNode() throws NodeProcessException {
+        return signalNode.process(context);
+    }
+
+    @Benchmark
+    public Action scoreNode() throws NodeProcessException {
+        return scoreNode.process(context);
+    }
+
+    @Benchmark
+    public Action scoreBandNode() throws NodeProcessException {
+        return scoreBandNode.process(context);
+    }
+
+    @Benchmark
+    public Action actionNode() throws NodeProcessException {
+        return actionNode.process(context);
+    }
+
+    @Benchmark
+    public Action decisionNode() throws NodeProcessException {
+        return decisionNode.process(context);
+    }
+}
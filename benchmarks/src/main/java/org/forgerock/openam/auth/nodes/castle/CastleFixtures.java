@@ -0,0 +1,245 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.SharedStateConstants;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Synthetic inputs of the Castle node benchmarks: a Castle Service configuration, browser-like HTTP requests, tree
+ * contexts and recorded Castle API responses.
+ */
+final class CastleFixtures {
+
+    static final String USERNAME = "bjensen";
+    static final String EMAIL = "bjensen@example.com";
+    static final String UNIVERSAL_ID = "id=bjensen,ou=user,o=alpha,ou=services,ou=am-config";
+    static final String REQUEST_TOKEN = "test|device:chrome|1.0.0|iOS|0|1zKpHEt0oWKwBjE9dOeMcZmvQvP9bFHv";
+    static final String CLIENT_IP = "203.0.113.42";
+
+    /* Headers in the order and size a desktop browser sends them to AM behind a load balancer. */
+    private static final Map<String, String> HEADERS = headers(
+            "Host", "am.example.com",
+            "Connection", "keep-alive",
+            "Content-Length", "412",
+            "Accept-API-Version", "protocol=1.0,resource=2.1",
+            "sec-ch-ua", "\"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"",
+            "X-Requested-With", "forgerock-sdk",
+            "sec-ch-ua-mobile", "?0",
+            "User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) "
+                    + "Chrome/118.0.0.0 Safari/537.36",
+            "Content-Type", "application/json",
+            "Accept", "application/json",
+            "sec-ch-ua-platform", "\"macOS\"",
+            "Origin", "https://login.example.com",
+            "Sec-Fetch-Site", "same-site",
+            "Sec-Fetch-Mode", "cors",
+            "Sec-Fetch-Dest", "empty",
+            "Referer", "https://login.example.com/",
+            "Accept-Encoding", "gzip, deflate, br",
+            "Accept-Language", "en-GB,en-US;q=0.9,en;q=0.8",
+            "Cookie", "amlbcookie=01; iPlanetDirectoryPro=AQIC5wM2LY4SfcxxXQmGKBJ2fV8dxUKs",
+            "X-Forwarded-For", CLIENT_IP,
+            "X-Forwarded-Proto", "https");
+
+    private CastleFixtures() {
+    }
+
+    /**
+     * Returns a browser-like HTTP request carrying the recorded headers.
+     */
+    static HttpServletRequest servletRequest() {
+        return (HttpServletRequest) Proxy.newProxyInstance(CastleFixtures.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getHeader":
+                        return header((String) args[0]);
+                    case "getHeaderNames":
+                        return Collections.enumeration(HEADERS.keySet());
+                    case "getRemoteAddr":
+                        return CLIENT_IP;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "CastleFixtures.servletRequest";
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Returns a tree context for a user that has collected a username and a Castle request token.
+     */
+    static TreeContext loginContext() {
+        JsonValue sharedState = JsonValue.json(JsonValue.object(
+                JsonValue.field(SharedStateConstants.USERNAME, USERNAME),
+                JsonValue.field(SharedStateConstants.REALM, "/"),
+                JsonValue.field(CastleHelper.APP_ID, "123456789012345"),
+                JsonValue.field(CastleHelper.REQUEST_TOKEN, REQUEST_TOKEN)));
+        return context(sharedState);
+    }
+
+    /**
+     * Returns a tree context whose shared state holds a Castle response, as left by the Castle Risk Node.
+     *
+     * @param response The Castle response stored in shared state.
+     */
+    static TreeContext decisionContext(JsonValue response) {
+        JsonValue sharedState = JsonValue.json(JsonValue.object(
+                JsonValue.field(SharedStateConstants.USERNAME, USERNAME),
+                JsonValue.field(SharedStateConstants.REALM, "/"),
+                JsonValue.field(CastleHelper.CASTLE_RESPONSE, response.getObject())));
+        return context(sharedState);
+    }
+
+    private static TreeContext context(JsonValue sharedState) {
+        ExternalRequestContext request = new ExternalRequestContext.Builder()
+                .clientIp(CLIENT_IP)
+                .servletRequest(servletRequest())
+                .build();
+        return new TreeContext(sharedState, JsonValue.json(JsonValue.object()), request, Collections.emptyList(),
+                Optional.of(UNIVERSAL_ID));
+    }
+
+    /**
+     * Loads a recorded Castle API response from the benchmark resources.
+     *
+     * @param name The resource name, relative to {@code /castle}.
+     */
+    static JsonElement recordedResponse(String name) {
+        try (InputStream in = CastleFixtures.class.getResourceAsStream("/castle/" + name);
+                Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the identity the benchmarks resolve for {@link #USERNAME}, without an identity repository.
+     */
+    static CastleIdentityCache.Identity identity() {
+        return new CastleIdentityCache.Identity(true, EMAIL, UNIVERSAL_ID);
+    }
+
+    private static String header(String name) {
+        for (Map.Entry<String, String> header : HEADERS.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> headers(String... namesAndValues) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * A Castle Service configuration with the default settings, sending every header except cookies.
+     */
+    static class Service implements CastleService {
+
+        private final String baseURL;
+
+        Service() {
+            this("https://api.castle.io/");
+        }
+
+        Service(String baseURL) {
+            this.baseURL = baseURL;
+        }
+
+        @Override
+        public String appId() {
+            return "123456789012345";
+        }
+
+        @Override
+        public String uri() {
+            return "https://d2t77mnxyo7adj.cloudfront.net/v1/c.js";
+        }
+
+        @Override
+        public char[] apiSecret() {
+            return "benchmark-api-secret".toCharArray();
+        }
+
+        @Override
+        public List<String> allowListedHeaders() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<String> denyListedHeaders() {
+            return Arrays.asList("Cookie", "Authorization");
+        }
+
+        @Override
+        public int timeout() {
+            return 1500;
+        }
+
+        @Override
+        public String baseURL() {
+            return baseURL;
+        }
+
+        @Override
+        public boolean logHttpRequests() {
+            return false;
+        }
+
+        @Override
+        public int identityCacheTtl() {
+            return 300;
+        }
+
+        @Override
+        public boolean identityCacheInvalidation() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.SharedStateConstants;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+
+import io.castle.client.Castle;
+
+/**
+ * Drives full {@link CastleRiskNode} then {@link CastleActionNode} logins against a {@link CastleMockServer} at a
+ * target rate, and reports the end-to-end latency percentiles.
+ * <p>
+ * Logins are started on a fixed schedule, whether or not the previous ones completed, and their latency is measured
+ * from their scheduled start, so that a slow Castle API shows up in the percentiles instead of lowering the rate.
+ * Every login evaluates new node instances, as AM does.
+ * </p>
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.forgerock.openam.auth.nodes.castle.CastleLoadHarness \
+ *     --rps=500 --duration=60 --latency=lognormal:40:250 --error-rate=0.01 --timeout=300 --call-mode=BOUNDED_EXECUTOR
+ * </pre>
+ * <p>
+ * Options: {@code --rps} (200), {@code --duration} and {@code --warmup} in seconds (30, 10), {@code --concurrency},
+ * the number of AM request threads (200), {@code --latency}, see {@link CastleMockServer.Latency#parse(String)}
+ * ({@code lognormal:40:200}), {@code --error-rate} (0), {@code --server-threads} (200), {@code --timeout} in
+ * milliseconds (1000), {@code --call-mode} (SYNCHRONOUS), {@code --executor-threads} (32),
+ * {@code --executor-queue-size} (64), {@code --breaker} (false), {@code --limiter} (false), {@code --hedging}, the
+ * hedging percentile or 0 to disable hedging (0), {@code --decision-cache-ttl} in seconds (0) and {@code --coalesce}
+ * (false). Every login sends the same user, IP and request token, so with the decision cache or
+ * coalescing enabled it measures cache hits or shared calls.
+ * </p>
+ */
+public final class CastleLoadHarness {
+
+    private final Map<String, String> options;
+    private final CastleRiskNode.Config riskConfig = new CastleRiskNode.Config() {
+    };
+    private final CastleActionNode actionNode = new CastleActionNode();
+    private final CastleClientRegistry clientRegistry = new CastleClientRegistry();
+    private final CastleMetrics metrics = new CastleMetrics();
+    private final CastleCircuitBreakers circuitBreakers = new CastleCircuitBreakers(metrics);
+    private final CastleIdentityCache identityCache = new CastleIdentityCache(metrics);
+    private final CastleCallExecutors callExecutors = new CastleCallExecutors(metrics);
+    private final CastleConcurrencyLimiters concurrencyLimiters = new CastleConcurrencyLimiters(metrics);
+    private final CastleDecisionCache decisionCache = new CastleDecisionCache(metrics);
+    private final CastleCallCoalescer callCoalescer = new CastleCallCoalescer(metrics);
+    private final CastleHedgers hedgers = new CastleHedgers(metrics);
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final Realm realm = Realm.root();
+    private CastleServiceSnapshots serviceSnapshots;
+
+    private CastleLoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args The options, as {@code --name=value}.
+     * @throws Exception If the load test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
+        }
+        new CastleLoadHarness(options).run();
+    }
+
+    private void run() throws Exception {
+        int rps = intOption("rps", 200);
+        int duration = intOption("duration", 30);
+        int warmup = intOption("warmup", 10);
+
+        try (CastleMockServer server = new CastleMockServer()
+                .latency(CastleMockServer.Latency.parse(option("latency", "lognormal:40:200")))
+                .errorRate(Double.parseDouble(option("error-rate", "0")))
+                .start(intOption("server-threads", 200))) {
+            CastleService service = new Service(server.baseURL(), options);
+            AnnotatedServiceRegistry serviceRegistry = mock(AnnotatedServiceRegistry.class);
+            when(serviceRegistry.getRealmSingleton(CastleService.class, realm)).thenReturn(Optional.of(service));
+            serviceSnapshots = new CastleServiceSnapshots(serviceRegistry);
+
+            ExecutorService requestThreads = Executors.newFixedThreadPool(intOption("concurrency", 200));
+            System.out.printf("Warming up for %ds at %d logins/s against %s%n", warmup, rps, server.baseURL());
+            drive(requestThreads, rps, warmup, null);
+            outcomes.clear();
+            failures.clear();
+
+            System.out.printf("Measuring for %ds at %d logins/s%n", duration, rps);
+            long[] samples = new long[rps * duration];
+            long start = System.nanoTime();
+            int count = drive(requestThreads, rps, duration, samples);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            requestThreads.shutdown();
+
+            report(Arrays.copyOf(samples, Math.min(count, samples.length)), elapsed, server);
+        } finally {
+            callExecutors.shutdown();
+            clientRegistry.shutdown();
+        }
+    }
+
+    /* Starts rps logins per second for the given duration, and waits for all of them to complete. */
+    private int drive(ExecutorService requestThreads, int rps, int seconds, long[] samples)
+            throws InterruptedException {
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / rps;
+        long total = (long) rps * seconds;
+        AtomicLong started = new AtomicLong();
+        AtomicInteger recorded = new AtomicInteger();
+        LongAdder completed = new LongAdder();
+        long origin = System.nanoTime();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(() -> {
+            long i = started.getAndIncrement();
+            if (i >= total) {
+                return;
+            }
+            long scheduledAt = origin + i * periodNanos;
+            requestThreads.execute(() -> {
+                login();
+                long latency = System.nanoTime() - scheduledAt;
+                if (samples != null) {
+                    int index = recorded.getAndIncrement();
+                    if (index < samples.length) {
+                        samples[index] = latency;
+                    }
+                }
+                completed.increment();
+            });
+        }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+        while (completed.sum() < total) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        scheduler.shutdownNow();
+        return recorded.get();
+    }
+
+    /* One login: a Castle Risk Node followed by a Castle Action Node. */
+    private void login() {
+        try {
+            TreeContext context = CastleFixtures.loginContext();
+            seedUserContext(context);
+            new CastleRiskNode(riskConfig, null, serviceSnapshots, realm, clientRegistry, circuitBreakers,
+                    identityCache, callExecutors, concurrencyLimiters, metrics, decisionCache,
+                    callCoalescer, hedgers).process(context);
+            Action action = actionNode.process(context);
+            outcomes.computeIfAbsent(action.outcome, o -> new LongAdder()).increment();
+        } catch (Exception e) {
+            failures.computeIfAbsent(e.getClass().getSimpleName(), f -> new LongAdder()).increment();
+        }
+    }
+
+    /* Stores the user context a previous node would have stored, so that no identity repository is needed. */
+    private static void seedUserContext(TreeContext context) {
+        Map<String, Object> user = new HashMap<>();
+        user.put(SharedStateConstants.USERNAME, CastleFixtures.USERNAME);
+        user.put(Castle.KEY_EMAIL, CastleFixtures.EMAIL);
+        user.put("id", CastleFixtures.UNIVERSAL_ID);
+        context.sharedState.put(CastleHelper.USER_CONTEXT, JsonValue.object(
+                JsonValue.field(SharedStateConstants.USERNAME, CastleFixtures.USERNAME),
+                JsonValue.field(Castle.KEY_USER, user)));
+    }
+
+    private void report(long[] samples, double elapsed, CastleMockServer server) {
+        Arrays.sort(samples);
+        System.out.printf("%nLogins: %d in %.1fs (%.1f/s)%n", samples.length, elapsed, samples.length / elapsed);
+        System.out.printf("Latency (ms): p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                percentile(samples, 50), percentile(samples, 90), percentile(samples, 99),
+                percentile(samples, 99.9), samples.length == 0 ? 0 : samples[samples.length - 1] / 1e6);
+        System.out.println("Outcomes: " + snapshot(outcomes));
+        System.out.println("Failures: " + snapshot(failures));
+        System.out.println("Castle API requests: " + new TreeMap<>(server.requestCounts())
+                + ", injected errors: " + server.errorCount());
+        System.out.println("Counters: " + metrics.counters());
+        System.out.println("Gauges: " + metrics.gauges());
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counts) {
+        Map<String, Long> values = new TreeMap<>();
+        counts.forEach((name, count) -> values.put(name, count.sum()));
+        return values;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * The Castle Service configuration of the load test, pointing at the stand-in server.
+     */
+    private static final class Service extends CastleFixtures.Service {
+
+        private final Map<String, String> options;
+
+        private Service(String baseURL, Map<String, String> options) {
+            super(baseURL);
+            this.options = options;
+        }
+
+        @Override
+        public int timeout() {
+            return Integer.parseInt(options.getOrDefault("timeout", "1000"));
+        }
+
+        @Override
+        public CastleCallExecutor.CallMode callMode() {
+            return CastleCallExecutor.CallMode.valueOf(options.getOrDefault("call-mode", "SYNCHRONOUS"));
+        }
+
+        @Override
+        public int executorThreads() {
+            return Integer.parseInt(options.getOrDefault("executor-threads", "32"));
+        }
+
+        @Override
+        public int executorQueueSize() {
+            return Integer.parseInt(options.getOrDefault("executor-queue-size", "64"));
+        }
+
+        @Override
+        public boolean breakerEnabled() {
+            return Boolean.parseBoolean(options.getOrDefault("breaker", "false"));
+        }
+
+        @Override
+        public boolean limiterEnabled() {
+            return Boolean.parseBoolean(options.getOrDefault("limiter", "false"));
+        }
+
+        @Override
+        public boolean hedgingEnabled() {
+            return hedgingPercentile() > 0;
+        }
+
+        @Override
+        public int hedgingPercentile() {
+            return Integer.parseInt(options.getOrDefault("hedging", "0"));
+        }
+
+        @Override
+        public int decisionCacheTtl() {
+            return Integer.parseInt(options.getOrDefault("decision-cache-ttl", "0"));
+        }
+
+        @Override
+        public boolean coalesceCalls() {
+            return Boolean.parseBoolean(options.getOrDefault("coalesce", "false"));
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embeddable stand-in for the Castle API, serving the risk, filter, log and device approval endpoints the nodes
+ * call, with a configurable latency distribution, error rate and response bodies.
+ * <p>
+ * Point {@link CastleService#baseURL()} at {@link #baseURL()} to run the nodes against it.
+ * </p>
+ */
+public class CastleMockServer implements AutoCloseable {
+
+    static final String RISK = "/v1/risk";
+    static final String FILTER = "/v1/filter";
+    static final String LOG = "/v1/log";
+    static final String DEVICES = "/v1/devices/";
+
+    private static final String DEVICE_RESPONSE = "{\"token\":\"%s\",\"risk\":0.2,\"created_at\":"
+            + "\"2020-01-01T00:00:00.000Z\",\"last_seen_at\":\"2020-01-01T00:00:00.000Z\","
+            + "\"approved_at\":\"2020-01-01T00:00:00.000Z\",\"escalated_at\":null,\"mitigated_at\":null,"
+            + "\"context\":{\"type\":\"desktop\"}}";
+
+    private final Map<String, byte[]> responses = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final LongAdder errors = new LongAdder();
+    private volatile Latency latency = Latency.fixed(0);
+    private volatile double errorRate;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates a server answering with the recorded risk and filter responses, without latency or errors.
+     */
+    public CastleMockServer() {
+        response(RISK, CastleFixtures.recordedResponse("risk-response.json").toString());
+        response(FILTER, CastleFixtures.recordedResponse("filter-response.json").toString());
+    }
+
+    /**
+     * Sets the latency added to every response.
+     *
+     * @param latency The latency distribution.
+     * @return This server.
+     */
+    public CastleMockServer latency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of requests answered with a {@code 500} error.
+     *
+     * @param errorRate The error rate, between 0 and 1.
+     * @return This server.
+     */
+    public CastleMockServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Sets the body of the responses of an endpoint.
+     *
+     * @param path {@link #RISK} or {@link #FILTER}.
+     * @param body The JSON response body.
+     * @return This server.
+     */
+    public CastleMockServer response(String path, String body) {
+        responses.put(path, body.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Starts the server on an ephemeral port of the loopback interface.
+     *
+     * @param threads The number of threads serving requests. Requests wait for their latency on these threads, so
+     *                it bounds the concurrency of the stand-in API.
+     * @return This server.
+     * @throws IOException If the server cannot be started.
+     */
+    public CastleMockServer start(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "castle-mock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/v1/", this::handle);
+        server.start();
+        return this;
+    }
+
+    /**
+     * Returns the base URL to configure in the Castle Service.
+     *
+     * @return The base URL, ending with a slash.
+     */
+    public String baseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Returns the number of requests received by each endpoint.
+     *
+     * @return The request counts, by path.
+     */
+    public Map<String, Long> requestCounts() {
+        Map<String, Long> counts = new ConcurrentHashMap<>();
+        requests.forEach((path, count) -> counts.put(path, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Returns the number of requests answered with an injected error.
+     *
+     * @return The error count.
+     */
+    public long errorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // drain the request so that the connection can be reused
+            }
+        }
+        String path = exchange.getRequestURI().getPath();
+        String endpoint = path.startsWith(DEVICES) ? DEVICES : path;
+        requests.computeIfAbsent(endpoint, p -> new LongAdder()).increment();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = latency.nextMillis(random);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (random.nextDouble() < errorRate) {
+            errors.increment();
+            send(exchange, 500, "{\"type\":\"internal_server_error\",\"message\":\"Injected error\"}"
+                    .getBytes(StandardCharsets.UTF_8));
+        } else if (LOG.equals(endpoint)) {
+            send(exchange, 204, null);
+        } else if (DEVICES.equals(endpoint)) {
+            String token = path.substring(DEVICES.length()).replace("/approve", "");
+            send(exchange, 200, String.format(DEVICE_RESPONSE, token).getBytes(StandardCharsets.UTF_8));
+        } else if (responses.containsKey(endpoint)) {
+            send(exchange, 201, responses.get(endpoint));
+        } else {
+            send(exchange, 404, "{\"type\":\"not_found\"}".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A distribution of response latencies.
+     */
+    public interface Latency {
+
+        /**
+         * Draws the latency of a response.
+         *
+         * @param random The random source.
+         * @return The latency in milliseconds.
+         */
+        long nextMillis(ThreadLocalRandom random);
+
+        /**
+         * Returns a constant latency.
+         *
+         * @param millis The latency in milliseconds.
+         * @return The distribution.
+         */
+        static Latency fixed(long millis) {
+            return random -> millis;
+        }
+
+        /**
+         * Returns a latency uniformly distributed between two bounds.
+         *
+         * @param minMillis The lower bound in milliseconds, inclusive.
+         * @param maxMillis The upper bound in milliseconds, inclusive.
+         * @return The distribution.
+         */
+        static Latency uniform(long minMillis, long maxMillis) {
+            return random -> random.nextLong(minMillis, maxMillis + 1);
+        }
+
+        /**
+         * Returns a log-normal latency, the usual shape of API response times, fitted to a median and a 99th
+         * percentile.
+         *
+         * @param medianMillis The median latency in milliseconds.
+         * @param p99Millis The 99th percentile latency in milliseconds.
+         * @return The distribution.
+         */
+        static Latency logNormal(double medianMillis, double p99Millis) {
+            double mu = Math.log(medianMillis);
+            double sigma = Math.max(0, (Math.log(p99Millis) - mu) / 2.3263);
+            return random -> Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+        }
+
+        /**
+         * Parses a distribution: {@code fixed:<ms>}, {@code uniform:<min>:<max>} or
+         * {@code lognormal:<median>:<p99>}.
+         *
+         * @param spec The distribution.
+         * @return The distribution.
+         */
+        static Latency parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+            case "fixed":
+                return fixed(Long.parseLong(parts[1]));
+            case "uniform":
+                return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            case "lognormal":
+                return logNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.realms.Realm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdRepoException;
+
+import io.castle.client.model.AuthenticateAction;
+
+/**
+ * Measures the per-login work of the Castle request nodes that does not depend on the Castle API: building the
+ * payload, mapping the response into shared state and building the fallback responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CastleRequestNodeBenchmark {
+
+    private static final String EVENT = CastleRequestNode.Event.LOGIN.toString();
+    private static final String STATUS = CastleRequestNode.Status.SUCCEEDED.toString();
+
+    private CastlePayloadBuilder reusingBuilder;
+    private CastlePayloadBuilder resolvingBuilder;
+    private TreeContext reusingContext;
+    private TreeContext resolvingContext;
+    private JsonElement riskResponse;
+    private CastleRequestNode.Config config;
+
+    @Setup
+    public void setUp() throws IdRepoException, SSOException {
+        CastleService service = new CastleFixtures.Service();
+        Realm realm = Realm.root();
+        CastleIdentityCache identityCache = new CastleIdentityCache(new CastleMetrics());
+        identityCache.get(realm, service, "/", CastleFixtures.USERNAME, "mail", CastleFixtures::identity);
+        CastleHeaderFilter headerFilter = new CastleHeaderFilter(service.allowListedHeaders(),
+                service.denyListedHeaders());
+
+        reusingBuilder = new CastlePayloadBuilder(realm, service, headerFilter, identityCache, null, "mail", true);
+        resolvingBuilder = new CastlePayloadBuilder(realm, service, headerFilter, identityCache, null, "mail", false);
+        reusingContext = CastleFixtures.loginContext();
+        resolvingContext = CastleFixtures.loginContext();
+        riskResponse = CastleFixtures.recordedResponse("risk-response.json");
+        config = new CastleRiskNode.Config() {
+        };
+    }
+
+    /**
+     * A Castle node that follows another one, reusing the user context it stored in shared state.
+     */
+    @Benchmark
+    public ImmutableMap<Object, Object> buildPayloadReusingUserContext() {
+        return reusingBuilder.build(reusingContext, EVENT, STATUS);
+    }
+
+    /**
+     * The first Castle node of a tree, filtering the headers and resolving the user from the identity cache.
+     */
+    @Benchmark
+    public ImmutableMap<Object, Object> buildPayloadResolvingUserContext() {
+        return resolvingBuilder.build(resolvingContext, EVENT, STATUS);
+    }
+
+    @Benchmark
+    public JsonValue mapCastleResponseTrimmed() {
+        return CastleResponseMapper.map(riskResponse, false);
+    }
+
+    @Benchmark
+    public JsonValue mapCastleResponseFull() {
+        return CastleResponseMapper.map(riskResponse, true);
+    }
+
+    /**
+     * The fallback responses are built when a node is created, which AM does for every evaluation of the node.
+     */
+    @Benchmark
+    public JsonValue buildFallbackValue() throws NodeProcessException {
+        return CastleRequestNode.buildFallbackValues(config).get(AuthenticateAction.CHALLENGE);
+    }
+}
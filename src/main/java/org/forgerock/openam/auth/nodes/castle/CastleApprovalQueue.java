@@ -0,0 +1,285 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.castle.client.Castle;
+import io.castle.client.model.CastleRuntimeException;
+import io.castle.client.model.CastleServerErrorException;
+
+/**
+ * Approves Castle devices in the background, so that the Castle Approve Device Node does not keep the user waiting
+ * on a side-effect call.
+ * <p>
+ * Approvals are bounded by a maximum number of pending approvals per node and retried with exponential backoff and
+ * jitter when Castle answers with a server error, cannot be reached or the realm's circuit breaker is open. A device
+ * token approved or pending within the
+ * deduplication window is not approved again. Approvals still pending when the plugin shuts down are given a short
+ * grace period to complete.
+ * </p>
+ */
+@Singleton
+public class CastleApprovalQueue {
+
+    static final String ENQUEUED = "castle.approve.enqueued";
+    static final String DEDUPLICATED = "castle.approve.deduplicated";
+    static final String DROPPED = "castle.approve.dropped";
+    static final String APPROVED = "castle.approve.approved";
+    static final String RETRIED = "castle.approve.retried";
+    static final String FAILED = "castle.approve.failed";
+    static final String PENDING = "castle.approve.pending";
+
+    private static final int WORKER_THREADS = 2;
+    private static final long SHUTDOWN_GRACE_MILLIS = 2000;
+    private static final long PURGE_INTERVAL_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final ConcurrentMap<String, Long> recentTokens = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentMap<UUID, AtomicInteger> pendingByNode = new ConcurrentHashMap<>();
+    private final CastleEndpointMetrics endpointMetrics = CastleEndpointMetrics.forEndpoint("approve");
+    private final CastleMetrics metrics;
+    private ScheduledThreadPoolExecutor workers;
+
+    /**
+     * Creates the queue.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleApprovalQueue(CastleMetrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge(PENDING, pending::get);
+    }
+
+    /**
+     * Queues the approval of a device. Never blocks: the approval is dropped when too many are pending.
+     *
+     * @param castle The Castle client to approve the device with.
+     * @param circuitBreaker The circuit breaker of the realm, checked before every attempt.
+     * @param deviceToken The device token.
+     * @param settings The retry, deduplication and capacity settings of the calling node.
+     */
+    void submit(Castle castle, CastleCircuitBreaker circuitBreaker, String deviceToken, Settings settings) {
+        long now = System.nanoTime();
+        long expiresAt = now + TimeUnit.SECONDS.toNanos(settings.dedupeWindowSeconds);
+        Long previous = recentTokens.putIfAbsent(deviceToken, expiresAt);
+        if (previous != null && (previous - now > 0 || !recentTokens.replace(deviceToken, previous, expiresAt))) {
+            metrics.increment(DEDUPLICATED);
+            return;
+        }
+        if (!reserve(settings)) {
+            recentTokens.remove(deviceToken, expiresAt);
+            metrics.increment(DROPPED);
+            logger.warn("Too many pending Castle device approvals. Dropping an approval.");
+            return;
+        }
+        try {
+            workers().execute(() -> attempt(castle, circuitBreaker, deviceToken, settings, 0, expiresAt));
+            metrics.increment(ENQUEUED);
+        } catch (RejectedExecutionException e) {
+            release(settings);
+            recentTokens.remove(deviceToken, expiresAt);
+            metrics.increment(DROPPED);
+        }
+    }
+
+    /* Takes a pending slot among the approvals of the calling node, so that nodes do not starve each other. */
+    private boolean reserve(Settings settings) {
+        AtomicInteger sameNode = pendingByNode.computeIfAbsent(settings.nodeId, id -> new AtomicInteger());
+        if (sameNode.incrementAndGet() > settings.capacity) {
+            sameNode.decrementAndGet();
+            return false;
+        }
+        pending.incrementAndGet();
+        return true;
+    }
+
+    private void release(Settings settings) {
+        pendingByNode.get(settings.nodeId).decrementAndGet();
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Stops the workers, giving pending approvals a short grace period. Called when the plugin shuts down.
+     */
+    void shutdown() {
+        ScheduledThreadPoolExecutor current;
+        synchronized (this) {
+            current = workers;
+            workers = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            current.awaitTermination(SHUTDOWN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current.shutdownNow();
+        recentTokens.clear();
+    }
+
+    private void attempt(Castle castle, CastleCircuitBreaker circuitBreaker, String deviceToken, Settings settings,
+            int attempt, long expiresAt) {
+        boolean approved = false;
+        boolean retried = false;
+        try {
+            if (!circuitBreaker.tryAcquire()) {
+                endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.CIRCUIT_OPEN);
+                retried = attempt < settings.retries && retry(castle, circuitBreaker, deviceToken, settings,
+                        attempt + 1, expiresAt);
+                if (!retried) {
+                    logger.warn("Castle circuit breaker is open. Unable to approve a Castle device after "
+                            + (attempt + 1) + " attempts.");
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            boolean recorded = false;
+            try {
+                castle.client().approve(deviceToken);
+                long elapsed = System.nanoTime() - start;
+                circuitBreaker.onSuccess(elapsed);
+                recorded = true;
+                endpointMetrics.recordLatency(metrics, elapsed);
+                metrics.increment(APPROVED);
+                approved = true;
+            } catch (CastleRuntimeException e) {
+                endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+                if (CastleCircuitBreaker.isOutage(e)) {
+                    circuitBreaker.onFailure();
+                    recorded = true;
+                }
+                retried = isRetryable(e) && attempt < settings.retries && retry(castle, circuitBreaker, deviceToken,
+                        settings, attempt + 1, expiresAt);
+                if (!retried) {
+                    logger.warn("Unable to approve a Castle device after " + (attempt + 1) + " attempts: "
+                            + e.getClass());
+                }
+            } finally {
+                // an attempt that failed in the node must not hold a half-open probe
+                if (!recorded) {
+                    circuitBreaker.onCancelled();
+                }
+            }
+        } finally {
+            // whatever ends the approval, including an unexpected exception, frees its slot
+            if (!retried) {
+                release(settings);
+                if (!approved) {
+                    endpointMetrics.recordError(metrics);
+                    metrics.increment(FAILED);
+                    // let a later journey approve the device again
+                    recentTokens.remove(deviceToken, expiresAt);
+                }
+            }
+        }
+    }
+
+    /* Schedules the next attempt after an exponential backoff with jitter, unless the queue is shutting down. */
+    private boolean retry(Castle castle, CastleCircuitBreaker circuitBreaker, String deviceToken, Settings settings,
+            int attempt, long expiresAt) {
+        long ceiling = settings.backoffMillis << Math.min(attempt - 1, 16);
+        long delay = ThreadLocalRandom.current().nextLong(settings.backoffMillis, Math.max(settings.backoffMillis,
+                ceiling) + 1);
+        ScheduledThreadPoolExecutor current;
+        synchronized (this) {
+            current = workers;
+        }
+        if (current == null) {
+            return false;
+        }
+        try {
+            current.schedule(() -> attempt(castle, circuitBreaker, deviceToken, settings, attempt, expiresAt),
+                    delay, TimeUnit.MILLISECONDS);
+            metrics.increment(RETRIED);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /* Server errors and connection failures are transient; invalid or unknown tokens are not. */
+    private static boolean isRetryable(CastleRuntimeException e) {
+        return e instanceof CastleServerErrorException || e.getClass() == CastleRuntimeException.class;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor workers() {
+        if (workers == null) {
+            workers = new ScheduledThreadPoolExecutor(WORKER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "castle-approve");
+                thread.setDaemon(true);
+                return thread;
+            });
+            workers.setRemoveOnCancelPolicy(true);
+            workers.scheduleWithFixedDelay(this::purge, PURGE_INTERVAL_SECONDS, PURGE_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+        return workers;
+    }
+
+    /* Forgets the tokens whose deduplication window has passed. */
+    private void purge() {
+        long now = System.nanoTime();
+        recentTokens.values().removeIf(expiresAt -> expiresAt - now <= 0);
+    }
+
+    /**
+     * The approval settings of a Castle Approve Device Node.
+     */
+    static final class Settings {
+        private final UUID nodeId;
+        private final int retries;
+        private final long backoffMillis;
+        private final long dedupeWindowSeconds;
+        private final int capacity;
+
+        /**
+         * Creates the settings.
+         *
+         * @param nodeId The id of the node, whose approvals share a capacity.
+         * @param retries The number of retries after the first attempt.
+         * @param backoffMillis The delay before the first retry in milliseconds, doubled for each further retry.
+         * @param dedupeWindowSeconds The time in seconds during which the same device token is approved only once.
+         * @param capacity The maximum number of pending approvals of the node.
+         */
+        Settings(UUID nodeId, int retries, long backoffMillis, long dedupeWindowSeconds, int capacity) {
+            this.nodeId = nodeId;
+            this.retries = Math.max(0, retries);
+            this.backoffMillis = Math.max(1, backoffMillis);
+            this.dedupeWindowSeconds = Math.max(0, dedupeWindowSeconds);
+            this.capacity = Math.max(1, capacity);
+        }
+    }
+}
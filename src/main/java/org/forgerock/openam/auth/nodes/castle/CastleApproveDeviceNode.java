@@ -21,9 +21,14 @@ import static org.forgerock.openam.auth.nodes.castle.CastleHelper.CASTLE_RESPONS
 import static org.forgerock.openam.auth.nodes.castle.CastleHelper.DEVICE;
 import static org.forgerock.openam.auth.nodes.castle.CastleHelper.TOKEN;
 
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
 import javax.inject.Inject;
 
-import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.InputState;
@@ -31,21 +36,33 @@ import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
-import org.forgerock.openam.sm.annotations.adapters.Password;
+import org.forgerock.openam.core.realms.Realm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.inject.assistedinject.Assisted;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.sm.SMSException;
 
 import io.castle.client.Castle;
+import io.castle.client.model.CastleRuntimeException;
 import io.castle.client.model.CastleSdkConfigurationException;
+import io.castle.client.model.CastleServerErrorException;
 
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
         configClass = CastleApproveDeviceNode.Config.class, tags = {"risk"})
 public class CastleApproveDeviceNode extends SingleOutcomeNode {
 
     private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final CastleService castleService;
     private final Castle castle;
+    private final CastleCircuitBreaker circuitBreaker;
+    private final CastleCallExecutor callExecutor;
+    private final CastleConcurrencyLimiter concurrencyLimiter;
+    private final CastleMetrics metrics;
+    private final CastleApprovalQueue approvalQueue;
+    private final CastleApprovalQueue.Settings approvalSettings;
+    private final CastleEndpointMetrics endpointMetrics = CastleEndpointMetrics.forEndpoint("approve");
 
 
     /**
@@ -53,18 +70,43 @@ public class CastleApproveDeviceNode extends SingleOutcomeNode {
      */
     public interface Config {
         /**
-         * The Castle API Secret
+         * Asynchronous
+         */
+        @Attribute(order = 300)
+        default boolean asynchronous() {
+            return false;
+        }
+
+        /**
+         * Approval Retries
          */
-        @Attribute(order = 100)
-        @Password
-        char[] apiSecret();
+        @Attribute(order = 310)
+        default int approvalRetries() {
+            return 3;
+        }
 
         /**
-         * Base URL
+         * Approval Backoff
          */
-        @Attribute(order = 200)
-        default String baseURL() {
-            return "https://api.castle.io/";
+        @Attribute(order = 320)
+        default int approvalBackoff() {
+            return 500;
+        }
+
+        /**
+         * Approval Deduplication Window
+         */
+        @Attribute(order = 330)
+        default int approvalDedupeWindow() {
+            return 300;
+        }
+
+        /**
+         * Approval Queue Capacity
+         */
+        @Attribute(order = 340)
+        default int approvalQueueCapacity() {
+            return 10000;
         }
 
 
@@ -76,29 +118,118 @@ public class CastleApproveDeviceNode extends SingleOutcomeNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param nodeId The id of the node.
+     * @param serviceSnapshots The Castle Service snapshots of the realms.
+     * @param realm The realm of the node.
+     * @param clientRegistry The registry of shared Castle clients.
+     * @param circuitBreakers The circuit breakers of the realms.
+     * @param callExecutors The executors of the Castle API calls of the realms.
+     * @param concurrencyLimiters The concurrency limiters of the Castle API calls of the realms.
+     * @param metrics The Castle metrics.
+     * @param approvalQueue The queue of asynchronous device approvals.
+     * @throws NodeProcessException If the Castle Service is not configured or the Castle SDK rejects it.
      */
     @Inject
-    public CastleApproveDeviceNode(@Assisted Config config) throws NodeProcessException {
+    public CastleApproveDeviceNode(@Assisted Config config, @Assisted UUID nodeId,
+            CastleServiceSnapshots serviceSnapshots, @Assisted Realm realm, CastleClientRegistry clientRegistry,
+            CastleCircuitBreakers circuitBreakers, CastleCallExecutors callExecutors,
+            CastleConcurrencyLimiters concurrencyLimiters, CastleMetrics metrics, CastleApprovalQueue approvalQueue)
+            throws NodeProcessException {
+        this.metrics = metrics;
+        this.approvalQueue = approvalQueue;
+        this.approvalSettings = config.asynchronous()
+                ? new CastleApprovalQueue.Settings(nodeId, config.approvalRetries(), config.approvalBackoff(),
+                        config.approvalDedupeWindow(), config.approvalQueueCapacity())
+                : null;
         try {
-            castle = Castle.initialize(Castle.configurationBuilder().apiSecret(String.valueOf(config.apiSecret()))
-                                             .withApiBaseUrl(config.baseURL()).build());
-        } catch (CastleSdkConfigurationException e) {
-            throw new NodeProcessException("Cannot initialize the castle SDK");
+            castleService = serviceSnapshots.get(realm).service();
+            castle = clientRegistry.getClient(realm, castleService);
+            circuitBreaker = circuitBreakers.get(realm, castleService);
+            callExecutor = callExecutors.get(realm, castleService);
+            concurrencyLimiter = concurrencyLimiters.get(realm, castleService);
+        } catch (CastleSdkConfigurationException | SMSException | SSOException e) {
+            throw new NodeProcessException("Cannot initialize the castle SDK due to: " + e.getMessage());
+        } catch (NoSuchElementException e) {
+            throw new NodeProcessException("Cannot initialize Castle Node because the Castle Service is not configured");
         }
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
         logger.debug("Starting Castle Device Approve Node");
-        JsonValue sharedState = context.sharedState;
         String deviceToken;
         try {
-            deviceToken = sharedState.get(CASTLE_RESPONSE).get(DEVICE).get(TOKEN).asString();
+            deviceToken = CastleHelper.getRiskResponse(context).get(DEVICE).get(TOKEN).asString();
         } catch (Exception e) {
             throw new NodeProcessException("Unable to get device token from sharedState", e);
         }
+        if (approvalSettings != null) {
+            logger.debug("Queueing approval of device with token: {}", deviceToken);
+            approvalQueue.submit(castle, circuitBreaker, deviceToken, approvalSettings);
+            return goToNext().build();
+        }
         logger.debug("Attempting to approve device with token: {}", deviceToken);
-        castle.client().approve(deviceToken);
+        if (!circuitBreaker.tryAcquire()) {
+            logger.debug("Castle circuit breaker is open. Continuing without approving the device.");
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.CIRCUIT_OPEN);
+            return goToNext().build();
+        }
+        CastleConcurrencyLimiter.Permit permit = concurrencyLimiter.tryAcquire();
+        if (permit == null) {
+            circuitBreaker.onCancelled();
+            logger.debug("Too many Castle calls in flight. Continuing without approving the device.");
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.LIMITED);
+            return goToNext().build();
+        }
+        long start = System.nanoTime();
+        boolean recorded = false;
+        try {
+            callExecutor.call(() -> {
+                castle.client().approve(deviceToken);
+                return null;
+            }, castleService.timeout());
+            long elapsed = System.nanoTime() - start;
+            circuitBreaker.onSuccess(elapsed);
+            recorded = true;
+            permit.onSuccess(elapsed);
+            endpointMetrics.recordLatency(metrics, elapsed);
+        } catch (TimeoutException e) {
+            circuitBreaker.onFailure();
+            recorded = true;
+            permit.onDropped();
+            endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.TIMEOUT);
+            logger.warn("Castle API did not approve the device within " + castleService.timeout()
+                    + "ms. Continuing without approving it.");
+        } catch (CancellationException e) {
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.CANCELLED);
+            logger.warn("Interrupted while approving the device. Continuing without approving it.");
+        } catch (RejectedExecutionException e) {
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.REJECTED);
+            logger.warn("Too many concurrent Castle API calls. Continuing without approving the device.");
+        } catch (CastleServerErrorException e) {
+            circuitBreaker.onFailure();
+            recorded = true;
+            permit.onDropped();
+            endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.SERVER_ERROR);
+            logger.warn("Failure when approving the device. Continuing without approving it. Code: "
+                    + e.getResponseCode() + ". " + e.getClass());
+        } catch (CastleRuntimeException e) {
+            if (CastleCircuitBreaker.isOutage(e)) {
+                circuitBreaker.onFailure();
+                recorded = true;
+                permit.onDropped();
+            }
+            endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+            endpointMetrics.recordError(metrics);
+            throw e;
+        } finally {
+            if (!recorded) {
+                circuitBreaker.onCancelled();
+            }
+            permit.release();
+        }
         return goToNext().build();
     }
 
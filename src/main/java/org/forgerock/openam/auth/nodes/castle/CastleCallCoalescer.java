@@ -0,0 +1,128 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.core.realms.Realm;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.castle.client.model.CastleResponse;
+
+/**
+ * Lets concurrent Castle calls for the same attempt share a single request to the Castle API.
+ * <p>
+ * Calls are identified by realm, endpoint and the decision cache fingerprint of their payload. The first call of a
+ * key is sent; calls with the same key that arrive while it is in flight wait for it and get the same response, or
+ * the same failure and therefore the same fallback. Each waiter still applies its own timeout, so a waiter never
+ * waits longer than it would have for its own call.
+ * </p>
+ * <p>
+ * Only the sent call tells anything about Castle, so only its node records a circuit breaker and concurrency limiter
+ * sample; waiters release their permits without one.
+ * </p>
+ */
+@Singleton
+public class CastleCallCoalescer {
+
+    static final String LEADERS = "castle.coalescing.leaders";
+    static final String FOLLOWERS = "castle.coalescing.followers";
+
+    private final ConcurrentMap<String, CompletableFuture<CastleResponse>> inFlight = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the coalescer.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleCallCoalescer(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends a Castle call, or waits for an identical call already in flight.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param endpoint The endpoint the node calls.
+     * @param payload The payload of the call.
+     * @param callExecutor The executor of the realm's Castle calls.
+     * @param onFollow Run when the call waits for an identical call in flight instead of being sent.
+     * @param sender Sends the call and waits for its response.
+     * @return The Castle response.
+     * @throws NodeProcessException If the call fails with a node error.
+     * @throws TimeoutException If the response does not arrive within the timeout of the Castle Service.
+     */
+    CastleResponse call(Realm realm, CastleService castleService, String endpoint,
+            ImmutableMap<Object, Object> payload, CastleCallExecutor callExecutor, Runnable onFollow,
+            Sender sender) throws NodeProcessException, TimeoutException {
+        if (!castleService.coalesceCalls()) {
+            return sender.send();
+        }
+        String key = realm.asPath() + '\u0000'
+                + CastleFingerprint.of(castleService.decisionCacheFingerprint()).keyOf(endpoint, payload);
+        CompletableFuture<CastleResponse> flight = new CompletableFuture<>();
+        CompletableFuture<CastleResponse> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            metrics.increment(FOLLOWERS);
+            onFollow.run();
+            return follow(leader, callExecutor, castleService.timeout());
+        }
+        metrics.increment(LEADERS);
+        try {
+            CastleResponse response = sender.send();
+            flight.complete(response);
+            return response;
+        } catch (Exception e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /* Waits on a dependent stage, so that a waiter timing out does not cancel the shared call. */
+    private static CastleResponse follow(CompletableFuture<CastleResponse> leader, CastleCallExecutor callExecutor,
+            long timeoutMillis) throws NodeProcessException, TimeoutException {
+        try {
+            return callExecutor.await(leader.thenApply(Function.identity()), timeoutMillis);
+        } catch (NodeProcessException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a Castle call and waits for its response, within the timeout of the Castle Service.
+     */
+    interface Sender {
+        CastleResponse send() throws NodeProcessException, TimeoutException;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the Castle calls of a realm, either on the calling thread or on a dedicated executor.
+ * <p>
+ * With an executor the calling AM thread waits for the Castle call with a strict deadline, and gets a
+ * {@link TimeoutException} when it is exceeded, instead of being parked for the whole HTTP round-trip. The executor
+ * is either a bounded thread pool or, where the JVM supports them, virtual threads with a bounded number of
+ * concurrent calls. Calls that do not fit are rejected with a {@link RejectedExecutionException}.
+ * </p>
+ */
+class CastleCallExecutor {
+
+    static final String TIMEOUTS = "castle.call.timeouts";
+    static final String REJECTED = "castle.call.rejected";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+
+    private final CallMode mode;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final CastleMetrics metrics;
+
+    CastleCallExecutor(String realm, CastleService castleService, CastleMetrics metrics) {
+        this.metrics = metrics;
+        int threads = Math.max(1, castleService.executorThreads());
+        ExecutorService virtualThreads = castleService.callMode() == CallMode.VIRTUAL_THREADS
+                ? newVirtualThreadExecutor()
+                : null;
+        if (virtualThreads != null) {
+            this.mode = CallMode.VIRTUAL_THREADS;
+            this.executor = virtualThreads;
+            this.permits = new Semaphore(threads + Math.max(0, castleService.executorQueueSize()));
+        } else if (castleService.callMode() != CallMode.SYNCHRONOUS) {
+            this.mode = CallMode.BOUNDED_EXECUTOR;
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, castleService.executorQueueSize())), runnable -> {
+                        Thread thread = new Thread(runnable, "castle-call" + realm);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            ((ThreadPoolExecutor) this.executor).allowCoreThreadTimeOut(true);
+            this.permits = null;
+        } else {
+            this.mode = CallMode.SYNCHRONOUS;
+            this.executor = null;
+            this.permits = null;
+        }
+    }
+
+    /**
+     * Returns whether calls run on the calling thread.
+     *
+     * @return {@code true} for the synchronous mode.
+     */
+    boolean isSynchronous() {
+        return mode == CallMode.SYNCHRONOUS;
+    }
+
+    /**
+     * Runs a Castle call.
+     *
+     * @param call The call.
+     * @param timeoutMillis The deadline of the call in milliseconds. Ignored in synchronous mode, and when zero or
+     *                      less.
+     * @param <T> The result type.
+     * @return The result of the call.
+     * @throws NodeProcessException If the call fails with a node error.
+     * @throws TimeoutException If the deadline is exceeded.
+     * @throws CancellationException If the waiting thread is interrupted.
+     */
+    <T> T call(CastleCall<T> call, long timeoutMillis) throws NodeProcessException, TimeoutException {
+        if (mode == CallMode.SYNCHRONOUS) {
+            return call.call();
+        }
+        return await(submit(call), timeoutMillis);
+    }
+
+    /**
+     * Waits for a call submitted earlier, cancelling it when the deadline is exceeded.
+     *
+     * @param future The pending result.
+     * @param timeoutMillis The deadline in milliseconds. Ignored when zero or less.
+     * @param <T> The result type.
+     * @return The result of the call.
+     * @throws NodeProcessException If the call fails with a node error.
+     * @throws TimeoutException If the deadline is exceeded.
+     * @throws CancellationException If the call was cancelled, or the waiting thread interrupted. Neither says
+     *                               anything about Castle, so callers must not count it against the endpoint.
+     */
+    <T> T await(Future<T> future, long timeoutMillis) throws NodeProcessException, TimeoutException {
+        try {
+            return timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            metrics.increment(TIMEOUTS);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Interrupted while waiting for Castle");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Submits a Castle call without waiting for it.
+     *
+     * @param call The call.
+     * @param <T> The result type.
+     * @return The pending result.
+     * @throws RejectedExecutionException If the executor is saturated.
+     */
+    <T> Future<T> submit(CastleCall<T> call) {
+        if (executor == null) {
+            throw new IllegalStateException("Castle calls are synchronous");
+        }
+        if (permits != null && !permits.tryAcquire()) {
+            metrics.increment(REJECTED);
+            throw new RejectedExecutionException("Too many concurrent Castle calls");
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    return call.call();
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            metrics.increment(REJECTED);
+            throw e;
+        }
+    }
+
+    /**
+     * Rethrows the cause of a failed call with its original type where possible.
+     *
+     * @param e The failure.
+     * @return Never returns normally; declared so that callers can {@code throw} it.
+     * @throws NodeProcessException If the call failed with a node error.
+     */
+    static NodeProcessException unwrap(ExecutionException e) throws NodeProcessException {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause instanceof NodeProcessException) {
+            throw (NodeProcessException) cause;
+        }
+        throw new NodeProcessException(cause);
+    }
+
+    /**
+     * Stops accepting calls. Calls already running are allowed to complete.
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Virtual threads are not supported by this JVM. Using a bounded executor for Castle calls.");
+            return null;
+        }
+    }
+
+    /**
+     * A call to the Castle API.
+     *
+     * @param <T> The result type.
+     */
+    interface CastleCall<T> {
+        T call() throws NodeProcessException;
+    }
+
+    /**
+     * Where the Castle calls of a realm run.
+     */
+    public enum CallMode {
+        /** On the calling AM thread, bounded only by the HTTP timeout. */
+        SYNCHRONOUS,
+        /** On a bounded thread pool, with the calling thread waiting up to the timeout. */
+        BOUNDED_EXECUTOR,
+        /** On virtual threads where supported, otherwise like {@link #BOUNDED_EXECUTOR}. */
+        VIRTUAL_THREADS
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+
+/**
+ * Holds the {@link CastleCallExecutor} of each realm. An executor is replaced, and the previous one shut down, when
+ * the realm's execution settings change.
+ */
+@Singleton
+public class CastleCallExecutors {
+
+    private final ConcurrentMap<String, RealmExecutor> executors = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the executor holder.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleCallExecutors(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the call executor of the realm.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @return The call executor.
+     */
+    CastleCallExecutor get(Realm realm, CastleService castleService) {
+        String key = realm.asPath();
+        List<Object> settings = Arrays.asList(castleService.callMode(), castleService.executorThreads(),
+                castleService.executorQueueSize());
+        RealmExecutor current = executors.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current.executor;
+        }
+        synchronized (executors) {
+            current = executors.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current.executor;
+            }
+            CastleCallExecutor executor = new CastleCallExecutor(key, castleService, metrics);
+            executors.put(key, new RealmExecutor(settings, executor));
+            if (current != null) {
+                current.executor.shutdown();
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Stops every executor. Called when the plugin shuts down.
+     */
+    void shutdown() {
+        synchronized (executors) {
+            executors.values().forEach(realmExecutor -> realmExecutor.executor.shutdown());
+            executors.clear();
+        }
+    }
+
+    private static final class RealmExecutor {
+        private final List<Object> settings;
+        private final CastleCallExecutor executor;
+
+        private RealmExecutor(List<Object> settings, CastleCallExecutor executor) {
+            this.settings = settings;
+            this.executor = executor;
+        }
+    }
+}
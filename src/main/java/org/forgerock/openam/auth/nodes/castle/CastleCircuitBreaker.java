@@ -0,0 +1,239 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.castle.client.model.CastleRuntimeException;
+import io.castle.client.model.CastleServerErrorException;
+
+/**
+ * A circuit breaker around the Castle API calls of a realm.
+ * <p>
+ * While closed, call outcomes are counted in tumbling windows of {@link CastleService#breakerWindowSize()} calls.
+ * When the error rate or the rate of calls slower than {@link CastleService#breakerSlowCallDuration()} reaches its
+ * threshold the breaker opens, and calls are rejected so that the nodes use their failover strategy straight away.
+ * After {@link CastleService#breakerOpenDuration()} the breaker lets a few probe calls through; it closes once they
+ * all succeed and opens again as soon as one of them fails.
+ * </p>
+ */
+class CastleCircuitBreaker {
+
+    static final String REJECTED = "castle.breaker.rejected";
+    static final String OPEN_TRANSITIONS = "castle.breaker.transitions.open";
+    static final String HALF_OPEN_TRANSITIONS = "castle.breaker.transitions.half_open";
+    static final String CLOSED_TRANSITIONS = "castle.breaker.transitions.closed";
+    static final String STATE = "castle.breaker.state";
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final String realm;
+    private final CastleMetrics metrics;
+    private final boolean enabled;
+    private final int windowSize;
+    private final int failureRate;
+    private final long slowCallNanos;
+    private final int slowCallRate;
+    private final long openNanos;
+    private final int halfOpenProbes;
+
+    private volatile State state = State.CLOSED;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    CastleCircuitBreaker(String realm, CastleService castleService, CastleMetrics metrics) {
+        this.realm = realm;
+        this.metrics = metrics;
+        this.enabled = castleService.breakerEnabled();
+        this.windowSize = Math.max(1, castleService.breakerWindowSize());
+        this.failureRate = positiveOrDisabled(castleService.breakerFailureRate());
+        this.slowCallNanos = castleService.breakerSlowCallDuration() > 0
+                ? TimeUnit.MILLISECONDS.toNanos(castleService.breakerSlowCallDuration())
+                : Long.MAX_VALUE;
+        this.slowCallRate = positiveOrDisabled(castleService.breakerSlowCallRate());
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(castleService.breakerOpenDuration());
+        this.halfOpenProbes = Math.max(1, castleService.breakerHalfOpenProbes());
+    }
+
+    /**
+     * Returns whether a call may be sent to Castle. A permitted call must be reported with {@link #onSuccess(long)},
+     * {@link #onFailure()} or {@link #onCancelled()}.
+     *
+     * @return {@code false} if the call must use the failover strategy instead.
+     */
+    boolean tryAcquire() {
+        if (!enabled || state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN && probesStarted < halfOpenProbes) {
+                probesStarted++;
+                return true;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+        }
+        metrics.increment(REJECTED);
+        return false;
+    }
+
+    /**
+     * Records a successful call.
+     *
+     * @param elapsedNanos The duration of the call.
+     */
+    void onSuccess(long elapsedNanos) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                if (++probesSucceeded >= halfOpenProbes) {
+                    transition(State.CLOSED);
+                }
+            } else if (state == State.CLOSED) {
+                record(false, elapsedNanos >= slowCallNanos);
+            }
+        }
+    }
+
+    /**
+     * Records a failed call.
+     */
+    void onFailure() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                transition(State.OPEN);
+            } else if (state == State.CLOSED) {
+                record(true, false);
+            }
+        }
+    }
+
+    /**
+     * Records a permitted call that was never sent, so that it does not hold a probe slot.
+     */
+    void onCancelled() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.HALF_OPEN && probesStarted > 0) {
+                probesStarted--;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a Castle SDK error means that Castle could not serve the call, because of a server error or a
+     * connection failure. Other errors, such as an invalid request token, are rejections of the request itself and
+     * say nothing about the health of Castle, so they must be reported with {@link #onCancelled()}. So must an I/O
+     * error caused by the interruption of a call made on the node's own thread.
+     *
+     * @param e The error.
+     * @return {@code true} if the error must be reported with {@link #onFailure()}.
+     */
+    static boolean isOutage(CastleRuntimeException e) {
+        if (e instanceof CastleServerErrorException) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException)) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current state of the breaker.
+     *
+     * @return The state.
+     */
+    State state() {
+        return state;
+    }
+
+    private void record(boolean failed, boolean slow) {
+        calls++;
+        if (failed) {
+            failures++;
+        }
+        if (slow) {
+            slowCalls++;
+        }
+        if (calls < windowSize) {
+            return;
+        }
+        boolean open = failures * 100L >= (long) failureRate * calls
+                || slowCalls * 100L >= (long) slowCallRate * calls;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+        if (open) {
+            transition(State.OPEN);
+        }
+    }
+
+    /* A rate threshold of zero or less can never be reached, rather than always being reached. */
+    private static int positiveOrDisabled(int rate) {
+        return rate > 0 ? rate : Integer.MAX_VALUE;
+    }
+
+    private void transition(State next) {
+        logger.warn("Castle circuit breaker of realm {} moves from {} to {}", realm, state, next);
+        state = next;
+        probesStarted = 0;
+        probesSucceeded = 0;
+        if (next == State.OPEN) {
+            openedAt = System.nanoTime();
+            metrics.increment(OPEN_TRANSITIONS);
+        } else if (next == State.HALF_OPEN) {
+            metrics.increment(HALF_OPEN_TRANSITIONS);
+        } else {
+            metrics.increment(CLOSED_TRANSITIONS);
+        }
+    }
+
+    /**
+     * The states of the breaker. The ordinal is reported as the state gauge.
+     */
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+}
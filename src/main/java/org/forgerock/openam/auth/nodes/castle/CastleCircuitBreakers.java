@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+
+/**
+ * Holds the {@link CastleCircuitBreaker} of each realm. A breaker is replaced, and its state reset, when the
+ * realm's breaker settings change.
+ */
+@Singleton
+public class CastleCircuitBreakers {
+
+    private final ConcurrentMap<String, RealmBreaker> breakers = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the breaker holder.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleCircuitBreakers(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the circuit breaker of the realm.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @return The circuit breaker.
+     */
+    CastleCircuitBreaker get(Realm realm, CastleService castleService) {
+        String key = realm.asPath();
+        List<Object> settings = Arrays.asList(castleService.breakerEnabled(), castleService.breakerWindowSize(),
+                castleService.breakerFailureRate(), castleService.breakerSlowCallDuration(),
+                castleService.breakerSlowCallRate(), castleService.breakerOpenDuration(),
+                castleService.breakerHalfOpenProbes());
+        RealmBreaker current = breakers.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current.breaker;
+        }
+        synchronized (breakers) {
+            current = breakers.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current.breaker;
+            }
+            CastleCircuitBreaker breaker = new CastleCircuitBreaker(key, castleService, metrics);
+            breakers.put(key, new RealmBreaker(settings, breaker));
+            metrics.gauge(CastleMetrics.forRealm(CastleCircuitBreaker.STATE, key), () -> breaker.state().ordinal());
+            return breaker;
+        }
+    }
+
+    private static final class RealmBreaker {
+        private final List<Object> settings;
+        private final CastleCircuitBreaker breaker;
+
+        private RealmBreaker(List<Object> settings, CastleCircuitBreaker breaker) {
+            this.settings = settings;
+            this.breaker = breaker;
+        }
+    }
+}
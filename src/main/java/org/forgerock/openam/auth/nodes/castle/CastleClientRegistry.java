@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.castle.client.Castle;
+import io.castle.client.internal.backend.CastleBackendProvider;
+import io.castle.client.model.CastleSdkConfigurationException;
+
+/**
+ * Hands out one shared {@link Castle} SDK instance per realm.
+ * <p>
+ * Every {@link Castle#initialize} call builds a new OkHttp backend with its own connection pool and dispatcher, so
+ * nodes ask this registry for the realm's client instead of initializing the SDK themselves. A client is only rebuilt
+ * when the realm's {@link CastleService} settings change.
+ * </p>
+ */
+@Singleton
+public class CastleClientRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final ConcurrentMap<String, RealmClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the shared Castle client of the realm, building it if it does not exist yet or if the realm's
+     * Castle Service settings have changed since it was built.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @return The shared Castle client.
+     * @throws CastleSdkConfigurationException If the SDK rejects the configuration.
+     */
+    Castle getClient(Realm realm, CastleService castleService) throws CastleSdkConfigurationException {
+        return getEntry(realm, castleService).castle;
+    }
+
+    /**
+     * Returns the header filter of the realm, compiled once from the allow and deny lists of its Castle Service.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @return The header filter.
+     * @throws CastleSdkConfigurationException If the SDK rejects the configuration.
+     */
+    CastleHeaderFilter getHeaderFilter(Realm realm, CastleService castleService)
+            throws CastleSdkConfigurationException {
+        return getEntry(realm, castleService).headerFilter;
+    }
+
+    private RealmClient getEntry(Realm realm, CastleService castleService) throws CastleSdkConfigurationException {
+        String key = realm.asPath();
+        List<Object> settings = settingsOf(castleService);
+        RealmClient current = clients.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current;
+        }
+        synchronized (clients) {
+            current = clients.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current;
+            }
+            logger.debug("Building Castle client for realm {}", key);
+            RealmClient client = new RealmClient(settings, buildClient(castleService),
+                    new CastleHeaderFilter(castleService.allowListedHeaders(), castleService.denyListedHeaders()));
+            clients.put(key, client);
+            return client;
+        }
+    }
+
+    /**
+     * Releases every client held by the registry. Called when the plugin shuts down.
+     * <p>
+     * The SDK keeps its OkHttp client private, so a released client is closed by dropping the last reference to it;
+     * its idle connections and dispatcher threads then expire on their own.
+     * </p>
+     */
+    void shutdown() {
+        synchronized (clients) {
+            logger.debug("Releasing {} Castle client(s)", clients.size());
+            clients.clear();
+        }
+    }
+
+    private static Castle buildClient(CastleService castleService) throws CastleSdkConfigurationException {
+        return Castle.initialize(
+                Castle.configurationBuilder()
+                        .apiSecret(String.valueOf(castleService.apiSecret()))
+                        .withAllowListHeaders(castleService.allowListedHeaders())
+                        .withDenyListHeaders(castleService.denyListedHeaders())
+                        .withTimeout(castleService.timeout())
+                        .withBackendProvider(CastleBackendProvider.OKHTTP)
+                        .withApiBaseUrl(castleService.baseURL())
+                        .withLogHttpRequests(castleService.logHttpRequests())
+                        .build()
+        );
+    }
+
+    /* The Castle Service attributes a client is built from, used to detect configuration changes. */
+    private static List<Object> settingsOf(CastleService castleService) {
+        return Arrays.asList(
+                String.valueOf(castleService.apiSecret()),
+                castleService.allowListedHeaders(),
+                castleService.denyListedHeaders(),
+                castleService.timeout(),
+                castleService.baseURL(),
+                castleService.logHttpRequests());
+    }
+
+    private static final class RealmClient {
+        private final List<Object> settings;
+        private final Castle castle;
+        private final CastleHeaderFilter headerFilter;
+
+        private RealmClient(List<Object> settings, Castle castle, CastleHeaderFilter headerFilter) {
+            this.settings = settings;
+            this.castle = castle;
+            this.headerFilter = headerFilter;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Shares what is compiled from a node's configured list, such as its decision rules, between the nodes configured
+ * with the same list.
+ * <p>
+ * Lookups do not lock. The cache holds a bounded number of lists: every edit of a node configuration adds a list
+ * that the old one is never looked up again for, so when the bound is reached the cache starts over rather than
+ * tracking which lists are still in use. The lists still configured are compiled again on their next lookup.
+ * </p>
+ *
+ * @param <T> The type of the compiled value.
+ */
+final class CastleCompiledCache<T> {
+
+    private static final int MAX_SIZE = 256;
+
+    private final ConcurrentMap<List<String>, T> compiled = new ConcurrentHashMap<>();
+    private final Function<List<String>, T> compiler;
+
+    /**
+     * Creates a cache.
+     *
+     * @param compiler Compiles a list, given a copy it may keep.
+     */
+    CastleCompiledCache(Function<List<String>, T> compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * Returns the value compiled from the given list, compiling it on first use.
+     *
+     * @param list The configured list, or {@code null} for an empty one.
+     * @return The compiled value.
+     */
+    T get(List<String> list) {
+        List<String> key = list == null ? new ArrayList<>() : list;
+        T value = compiled.get(key);
+        if (value != null) {
+            return value;
+        }
+        if (compiled.size() >= MAX_SIZE) {
+            compiled.clear();
+        }
+        return compiled.computeIfAbsent(new ArrayList<>(key), compiler);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An adaptive limit on the number of Castle calls of a realm in flight at the same time, so that AM request threads
+ * do not pile up behind a slow Castle API.
+ * <p>
+ * The limit follows an additive increase, multiplicative decrease scheme: every call that completes in time raises
+ * it by {@code 1 / limit}, about one per round of calls, while a call that times out, fails with a server error or
+ * exceeds the latency threshold lowers it by 10%. The limit is lowered at most once per round: drops of calls
+ * started before the last decrease are ignored, since they were sent under the previous limit. Calls beyond the
+ * limit are not sent and use the failover strategy of the node straight away.
+ * </p>
+ */
+class CastleConcurrencyLimiter {
+
+    static final String LIMIT = "castle.limiter.limit";
+    static final String IN_FLIGHT = "castle.limiter.in_flight";
+    static final String REJECTED = "castle.limiter.rejected";
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final CastleMetrics metrics;
+    private final String rejected;
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile double limit;
+    private long lastDecreaseAt = System.nanoTime();
+
+    CastleConcurrencyLimiter(String realm, CastleService castleService, CastleMetrics metrics) {
+        this.metrics = metrics;
+        this.rejected = CastleMetrics.forRealm(REJECTED, realm);
+        this.enabled = castleService.limiterEnabled();
+        this.minLimit = Math.max(1, castleService.limiterMinLimit());
+        this.maxLimit = Math.max(minLimit, castleService.limiterMaxLimit());
+        this.limit = Math.min(maxLimit, Math.max(minLimit, castleService.limiterInitialLimit()));
+        this.latencyThresholdNanos = castleService.limiterLatencyThreshold() > 0
+                ? TimeUnit.MILLISECONDS.toNanos(castleService.limiterLatencyThreshold())
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * Takes a slot for a call, unless the limit is reached. The returned permit must be completed with
+     * {@link Permit#onSuccess(long)}, {@link Permit#onDropped()} or {@link Permit#release()}.
+     *
+     * @return The permit, or {@code null} if the call must use the failover strategy instead.
+     */
+    Permit tryAcquire() {
+        if (!enabled) {
+            return Permit.UNLIMITED;
+        }
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                metrics.increment(rejected);
+                return null;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(this, System.nanoTime());
+            }
+        }
+    }
+
+    int limit() {
+        return (int) limit;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private synchronized void onSample(long startedAt, long elapsedNanos, boolean dropped) {
+        if (dropped || elapsedNanos > latencyThresholdNanos) {
+            if (startedAt - lastDecreaseAt >= 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseAt = System.nanoTime();
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * A slot taken by one call. Only the first completion of a permit counts.
+     */
+    static final class Permit {
+        static final Permit UNLIMITED = new Permit(null, 0);
+
+        private final CastleConcurrencyLimiter limiter;
+        private final long startedAt;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Permit(CastleConcurrencyLimiter limiter, long startedAt) {
+            this.limiter = limiter;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Frees the slot of a call that completed in time, which may raise the limit.
+         *
+         * @param elapsedNanos The duration of the call.
+         */
+        void onSuccess(long elapsedNanos) {
+            complete(elapsedNanos, false);
+        }
+
+        /**
+         * Frees the slot of a call that timed out or failed with a server error, which lowers the limit.
+         */
+        void onDropped() {
+            complete(System.nanoTime() - startedAt, true);
+        }
+
+        /**
+         * Frees the slot without adjusting the limit, for calls that did not reach Castle or failed for a reason
+         * unrelated to its load.
+         */
+        void release() {
+            if (limiter != null && done.compareAndSet(false, true)) {
+                limiter.inFlight.decrementAndGet();
+            }
+        }
+
+        private void complete(long elapsedNanos, boolean dropped) {
+            if (limiter != null && done.compareAndSet(false, true)) {
+                limiter.inFlight.decrementAndGet();
+                limiter.onSample(startedAt, elapsedNanos, dropped);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+
+/**
+ * Holds the {@link CastleConcurrencyLimiter} of each realm. A limiter is replaced when the realm's limiter settings
+ * change; calls in flight on the previous limiter complete against it.
+ */
+@Singleton
+public class CastleConcurrencyLimiters {
+
+    private final ConcurrentMap<String, RealmLimiter> limiters = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the limiter holder.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleConcurrencyLimiters(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the concurrency limiter of the realm.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @return The concurrency limiter.
+     */
+    CastleConcurrencyLimiter get(Realm realm, CastleService castleService) {
+        String key = realm.asPath();
+        List<Object> settings = Arrays.asList(castleService.limiterEnabled(), castleService.limiterInitialLimit(),
+                castleService.limiterMinLimit(), castleService.limiterMaxLimit(),
+                castleService.limiterLatencyThreshold());
+        RealmLimiter current = limiters.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current.limiter;
+        }
+        synchronized (limiters) {
+            current = limiters.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current.limiter;
+            }
+            CastleConcurrencyLimiter limiter = new CastleConcurrencyLimiter(key, castleService, metrics);
+            limiters.put(key, new RealmLimiter(settings, limiter));
+            metrics.gauge(CastleMetrics.forRealm(CastleConcurrencyLimiter.LIMIT, key), limiter::limit);
+            metrics.gauge(CastleMetrics.forRealm(CastleConcurrencyLimiter.IN_FLIGHT, key), limiter::inFlight);
+            return limiter;
+        }
+    }
+
+    private static final class RealmLimiter {
+        private final List<Object> settings;
+        private final CastleConcurrencyLimiter limiter;
+
+        private RealmLimiter(List<Object> settings, CastleConcurrencyLimiter limiter) {
+            this.settings = settings;
+            this.limiter = limiter;
+        }
+    }
+}
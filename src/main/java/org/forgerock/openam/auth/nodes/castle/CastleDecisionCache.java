@@ -0,0 +1,205 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.realms.Realm;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.castle.client.Castle;
+
+/**
+ * A bounded, short-lived cache of the Castle decisions of the risk and filter nodes, so that bursts of identical
+ * attempts, such as user retries or credential stuffing against one account, do not each cost a Castle round-trip.
+ * <p>
+ * Decisions are keyed by endpoint and by a configurable fingerprint of the payload: any of the event, status, user
+ * id, IP address and request token. Only the events the realm's Castle Service allows are cached, and only Castle
+ * responses: fallback decisions never are. The first decision is kept until it expires, so repeated attempts cannot
+ * replace it with a more lenient one.
+ * </p>
+ * <p>
+ * Every decision of a realm lives for the same time, so each realm keeps its decisions in insertion order, which is
+ * also their expiry order, and a put only drops the expired or excess decisions at the head.
+ * </p>
+ */
+@Singleton
+public class CastleDecisionCache {
+
+    static final String HITS = "castle.decision_cache.hits";
+    static final String MISSES = "castle.decision_cache.misses";
+
+    private final ConcurrentMap<String, RealmCache> caches = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the cache.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleDecisionCache(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the cached decision for a payload.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param endpoint The endpoint the node calls.
+     * @param payload The payload of the call.
+     * @return A copy of the cached decision, or {@code null} if the payload is not cacheable or not cached.
+     */
+    JsonValue get(Realm realm, CastleService castleService, String endpoint, ImmutableMap<Object, Object> payload) {
+        if (castleService.decisionCacheTtl() <= 0) {
+            return null;
+        }
+        RealmCache cache = cacheFor(realm, castleService);
+        String key = cache.keyOf(endpoint, payload);
+        if (key == null) {
+            return null;
+        }
+        JsonValue decision = cache.get(key);
+        if (decision != null) {
+            metrics.increment(HITS);
+            return decision.copy();
+        }
+        metrics.increment(MISSES);
+        return null;
+    }
+
+    /**
+     * Caches the decision Castle made for a payload, unless a live decision is already cached for it.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param endpoint The endpoint the node called.
+     * @param payload The payload of the call.
+     * @param decision The mapped Castle response.
+     */
+    void put(Realm realm, CastleService castleService, String endpoint, ImmutableMap<Object, Object> payload,
+            JsonValue decision) {
+        if (castleService.decisionCacheTtl() <= 0) {
+            return;
+        }
+        RealmCache cache = cacheFor(realm, castleService);
+        String key = cache.keyOf(endpoint, payload);
+        if (key != null) {
+            cache.put(key, decision.copy());
+        }
+    }
+
+    private RealmCache cacheFor(Realm realm, CastleService castleService) {
+        String key = realm.asPath();
+        List<Object> settings = Arrays.asList(castleService.decisionCacheTtl(), castleService.decisionCacheSize(),
+                castleService.decisionCacheEvents(), castleService.decisionCacheFingerprint());
+        RealmCache current = caches.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current;
+        }
+        synchronized (caches) {
+            current = caches.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current;
+            }
+            RealmCache cache = new RealmCache(settings, castleService);
+            caches.put(key, cache);
+            return cache;
+        }
+    }
+
+    private final class RealmCache {
+        private final List<Object> settings;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        private final long ttlNanos;
+        private final int maxSize;
+        private final Set<String> events;
+        private final CastleFingerprint fingerprint;
+
+        private RealmCache(List<Object> settings, CastleService castleService) {
+            this.settings = settings;
+            this.ttlNanos = TimeUnit.SECONDS.toNanos(castleService.decisionCacheTtl());
+            this.maxSize = Math.max(1, castleService.decisionCacheSize());
+            this.events = castleService.decisionCacheEvents() == null ? Collections.emptySet()
+                    : new HashSet<>(castleService.decisionCacheEvents());
+            this.fingerprint = CastleFingerprint.of(castleService.decisionCacheFingerprint());
+        }
+
+        /* Builds the fingerprint of a payload, or returns null when its event is not cacheable. */
+        private String keyOf(String endpoint, ImmutableMap<Object, Object> payload) {
+            Object event = payload.get(Castle.KEY_EVENT);
+            if (!events.contains(String.valueOf(event))) {
+                return null;
+            }
+            return fingerprint.keyOf(endpoint, payload);
+        }
+
+        private synchronized JsonValue get(String key) {
+            Entry entry = entries.get(key);
+            return entry != null && System.nanoTime() - entry.cachedAt < ttlNanos ? entry.decision : null;
+        }
+
+        private synchronized void put(String key, JsonValue decision) {
+            long now = System.nanoTime();
+            Entry current = entries.get(key);
+            if (current != null && now - current.cachedAt < ttlNanos) {
+                return;
+            }
+            // an expired decision is removed first, so that the new one moves to the tail of the insertion order
+            entries.remove(key);
+            entries.put(key, new Entry(decision, now));
+            evictEntries(now);
+        }
+
+        /* Drops the expired entries, then the oldest ones until the cache fits its size. */
+        private void evictEntries(long now) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (now - entry.cachedAt < ttlNanos && entries.size() <= maxSize) {
+                    break;
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final JsonValue decision;
+        private final long cachedAt;
+
+        private Entry(JsonValue decision, long cachedAt) {
+            this.decision = decision;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
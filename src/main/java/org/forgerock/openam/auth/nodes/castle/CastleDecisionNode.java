@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static java.util.Collections.emptyList;
+import static org.forgerock.openam.auth.node.api.Action.goTo;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.getRiskResponse;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.InputState;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.OutcomeProvider;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.assistedinject.Assisted;
+import com.sun.identity.sm.RequiredValueValidator;
+import com.sun.identity.sm.ServiceAttributeValidator;
+
+/**
+ * Routes a Castle response to named outcomes with an ordered rule table over its risk, policy action, signals and
+ * device, so that a single node replaces a chain of Castle Action, Score and Signal nodes.
+ */
+@Node.Metadata(outcomeProvider = CastleDecisionNode.CastleDecisionOutcomeProvider.class,
+        configClass = CastleDecisionNode.Config.class, tags = {"risk"})
+public class CastleDecisionNode implements Node {
+
+    private final CastleDecisionRules rules;
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+
+        /**
+         * The ordered decision rules.
+         *
+         * @return The decision rules.
+         */
+        @Attribute(order = 100, validators = {RequiredValueValidator.class, RulesValidator.class})
+        List<String> rules();
+
+    }
+
+    /**
+     * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
+     * from the plugin.
+     *
+     * @param config The service config.
+     * @throws NodeProcessException If a decision rule is not valid.
+     */
+    @Inject
+    public CastleDecisionNode(@Assisted Config config) throws NodeProcessException {
+        try {
+            this.rules = CastleDecisionRules.of(config.rules());
+        } catch (IllegalArgumentException e) {
+            throw new NodeProcessException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Action process(TreeContext context) throws NodeProcessException {
+        logger.debug("Starting Castle Decision Node");
+        return goTo(rules.route(getRiskResponse(context))).build();
+    }
+
+    @Override
+    public InputState[] getInputs() {
+        return new InputState[]{new InputState(CastleHelper.CASTLE_RESPONSE, true)};
+    }
+
+    /**
+     * Rejects decision rules that cannot be compiled.
+     */
+    public static class RulesValidator implements ServiceAttributeValidator {
+
+        @Override
+        public boolean validate(Set<String> values) {
+            try {
+                values.forEach(CastleDecisionRules::validate);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Defines the possible outcomes from this Castle Decision Node.
+     */
+    public static class CastleDecisionOutcomeProvider implements OutcomeProvider {
+
+        @Override
+        public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
+            try {
+                return CastleDecisionRules.outcomesOf(nodeAttributes.get("rules").required().asList(String.class))
+                                          .stream()
+                                          .map(outcome -> new Outcome(outcome, outcome))
+                                          .collect(Collectors.toList());
+            } catch (JsonValueException e) {
+                return emptyList();
+            }
+        }
+    }
+}
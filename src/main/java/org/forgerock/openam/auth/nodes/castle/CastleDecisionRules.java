@@ -0,0 +1,332 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.ACTION;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.DEVICE;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.NONE_TRIGGERED;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.POLICY;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.RISK;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.SIGNALS;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.TOKEN;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An ordered table of routing rules over a Castle response, as configured on the Castle Decision Node.
+ * <p>
+ * Each rule has the form {@code outcome: condition & condition ...}, and the first rule whose conditions all hold
+ * gives the outcome. A rule without conditions always matches. The conditions are:
+ * </p>
+ * <ul>
+ *     <li>{@code risk >= 0.6}, with any of {@code <}, {@code <=}, {@code >} and {@code >=};</li>
+ *     <li>{@code action = challenge|deny}, met by any of the listed policy actions, whatever their case, so that
+ *     fallback decisions match as well;</li>
+ *     <li>{@code signal = #proxy_ip|#tor_ip}, met when any of the listed signals was triggered, or
+ *     {@code signal = none}, met when no signal was triggered;</li>
+ *     <li>{@code device.<field> = value|value}, met by any of the listed values of a device field. Fields other
+ *     than the token are only in responses retained in full.</li>
+ * </ul>
+ * <p>
+ * Tables are compiled once per distinct rule list and shared through a {@link CastleCompiledCache}: risk conditions
+ * become a half-open range, and the other conditions become sets, so a response is routed with one read of each of
+ * its fields.
+ * </p>
+ */
+final class CastleDecisionRules {
+
+    private static final CastleCompiledCache<CastleDecisionRules> TABLES =
+            new CastleCompiledCache<>(CastleDecisionRules::compile);
+    private static final String NONE = "none";
+    private static final Logger LOGGER = LoggerFactory.getLogger("amAuth");
+
+    private final Rule[] rules;
+    private final boolean readsDevice;
+    private final boolean readsFullDevice;
+    private final AtomicBoolean trimmedWarned = new AtomicBoolean();
+
+    private CastleDecisionRules(Rule[] rules) {
+        this.rules = rules;
+        boolean readsDevice = false;
+        boolean readsFullDevice = false;
+        for (Rule rule : rules) {
+            for (String field : rule.deviceFields) {
+                readsDevice = true;
+                readsFullDevice |= !TOKEN.equals(field);
+            }
+        }
+        this.readsDevice = readsDevice;
+        this.readsFullDevice = readsFullDevice;
+    }
+
+    /**
+     * Returns the table compiled from the given rules.
+     *
+     * @param rules The rules, in order.
+     * @return The compiled table.
+     * @throws IllegalArgumentException If a rule is not valid.
+     */
+    static CastleDecisionRules of(List<String> rules) {
+        return TABLES.get(rules);
+    }
+
+    /**
+     * Returns the outcomes of the given rules in the order they first appear, followed by
+     * {@link CastleHelper#NONE_TRIGGERED}. Rules that are not valid still contribute their outcome.
+     *
+     * @param rules The rules, in order.
+     * @return The outcomes.
+     */
+    static List<String> outcomesOf(List<String> rules) {
+        Set<String> outcomes = new LinkedHashSet<>();
+        for (String rule : rules) {
+            String outcome = outcomeOf(rule);
+            if (!outcome.isEmpty()) {
+                outcomes.add(outcome);
+            }
+        }
+        outcomes.add(NONE_TRIGGERED);
+        return new ArrayList<>(outcomes);
+    }
+
+    /**
+     * Routes a Castle response.
+     *
+     * @param response The Castle response, as returned by {@link CastleHelper#getRiskResponse}.
+     * @return The outcome of the first matching rule, or {@link CastleHelper#NONE_TRIGGERED}.
+     */
+    String route(JsonValue response) {
+        JsonValue riskValue = response.get(RISK);
+        double risk = riskValue.isNumber() ? riskValue.asDouble() : Double.NaN;
+        String action = response.get(POLICY).get(ACTION).asString();
+        if (action != null) {
+            // fallback decisions carry upper case actions
+            action = action.toLowerCase(Locale.ROOT);
+        }
+        JsonValue signalsValue = response.get(SIGNALS);
+        Set<String> signals = signalsValue.isMap() ? signalsValue.asMap().keySet() : Collections.emptySet();
+        JsonValue device = readsDevice ? response.get(DEVICE) : null;
+        if (readsFullDevice && isTrimmed(device) && trimmedWarned.compareAndSet(false, true)) {
+            LOGGER.warn("Castle decision rules read device fields, but the Castle response only holds the device "
+                    + "token. Enable Retain Full Response on the Castle node that called Castle.");
+        }
+        for (Rule rule : rules) {
+            if (rule.matches(risk, action, signals, device)) {
+                return rule.outcome;
+            }
+        }
+        return NONE_TRIGGERED;
+    }
+
+    /* A trimmed response keeps only the device token. */
+    private static boolean isTrimmed(JsonValue device) {
+        if (!device.isMap()) {
+            return true;
+        }
+        for (String field : device.keys()) {
+            if (!TOKEN.equals(field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static CastleDecisionRules compile(List<String> rules) {
+        Rule[] compiled = new Rule[rules.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compileRule(rules.get(i));
+        }
+        return new CastleDecisionRules(compiled);
+    }
+
+    /**
+     * Compiles a single rule.
+     *
+     * @param rule The rule.
+     * @throws IllegalArgumentException If the rule is not valid.
+     */
+    static void validate(String rule) {
+        compileRule(rule);
+    }
+
+    private static String outcomeOf(String rule) {
+        int colon = rule.indexOf(':');
+        return (colon < 0 ? rule : rule.substring(0, colon)).trim();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Rule compileRule(String rule) {
+        String outcome = outcomeOf(rule);
+        if (outcome.isEmpty()) {
+            throw new IllegalArgumentException("Castle decision rule has no outcome: " + rule);
+        }
+        Rule compiled = new Rule(outcome);
+        int colon = rule.indexOf(':');
+        if (colon < 0) {
+            return compiled;
+        }
+        List<String> deviceFields = new ArrayList<>();
+        List<Set<String>> deviceValues = new ArrayList<>();
+        List<Set<String>> signals = new ArrayList<>();
+        for (String condition : rule.substring(colon + 1).split("&")) {
+            condition = condition.trim();
+            if (condition.isEmpty()) {
+                continue;
+            }
+            if (condition.startsWith(RISK)) {
+                compileRisk(compiled, condition.substring(RISK.length()).trim(), rule);
+                continue;
+            }
+            int equals = condition.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Castle decision rule has an invalid condition: " + rule);
+            }
+            String name = condition.substring(0, equals).trim();
+            Set<String> values = valuesOf(condition.substring(equals + 1), rule);
+            if (ACTION.equals(name)) {
+                compiled.actions = intersect(compiled.actions, lowerCase(values));
+            } else if ("signal".equals(name) && values.equals(Collections.singleton(NONE))) {
+                compiled.noSignals = true;
+            } else if ("signal".equals(name)) {
+                signals.add(values);
+            } else if (name.startsWith(DEVICE + ".") && name.length() > DEVICE.length() + 1) {
+                deviceFields.add(name.substring(DEVICE.length() + 1));
+                deviceValues.add(values);
+            } else {
+                throw new IllegalArgumentException("Castle decision rule has an unknown condition: " + rule);
+            }
+        }
+        compiled.signals = signals.toArray(new Set[0]);
+        compiled.deviceFields = deviceFields.toArray(new String[0]);
+        compiled.deviceValues = deviceValues.toArray(new Set[0]);
+        return compiled;
+    }
+
+    /* Narrows the risk range of a rule, so that each rule keeps a single lower and upper bound. */
+    private static void compileRisk(Rule compiled, String condition, String rule) {
+        String operator = condition.startsWith(">=") || condition.startsWith("<=")
+                ? condition.substring(0, 2)
+                : condition.substring(0, Math.min(1, condition.length()));
+        double bound;
+        try {
+            bound = Double.parseDouble(condition.substring(operator.length()).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Castle decision rule has an invalid risk: " + rule, e);
+        }
+        switch (operator) {
+        case ">=":
+            compiled.minRisk = Math.max(compiled.minRisk, bound);
+            break;
+        case ">":
+            compiled.minRisk = Math.max(compiled.minRisk, Math.nextUp(bound));
+            break;
+        case "<":
+            compiled.maxRisk = Math.min(compiled.maxRisk, bound);
+            break;
+        case "<=":
+            compiled.maxRisk = Math.min(compiled.maxRisk, Math.nextUp(bound));
+            break;
+        default:
+            throw new IllegalArgumentException("Castle decision rule has an invalid risk operator: " + rule);
+        }
+    }
+
+    private static Set<String> valuesOf(String values, String rule) {
+        Set<String> set = new HashSet<>();
+        for (String value : values.split("\\|")) {
+            if (!value.trim().isEmpty()) {
+                set.add(value.trim());
+            }
+        }
+        if (set.isEmpty()) {
+            throw new IllegalArgumentException("Castle decision rule has a condition without values: " + rule);
+        }
+        return set;
+    }
+
+    private static Set<String> lowerCase(Set<String> values) {
+        Set<String> lowerCase = new HashSet<>();
+        for (String value : values) {
+            lowerCase.add(value.toLowerCase(Locale.ROOT));
+        }
+        return lowerCase;
+    }
+
+    private static Set<String> intersect(Set<String> current, Set<String> values) {
+        if (current == null) {
+            return values;
+        }
+        Set<String> intersection = new HashSet<>(current);
+        intersection.retainAll(values);
+        return intersection;
+    }
+
+    private static final class Rule {
+        private final String outcome;
+        private double minRisk = Double.NEGATIVE_INFINITY;
+        private double maxRisk = Double.POSITIVE_INFINITY;
+        private Set<String> actions;
+        private boolean noSignals;
+        private Set<String>[] signals;
+        private String[] deviceFields;
+        private Set<String>[] deviceValues;
+
+        @SuppressWarnings("unchecked")
+        private Rule(String outcome) {
+            this.outcome = outcome;
+            this.signals = new Set[0];
+            this.deviceFields = new String[0];
+            this.deviceValues = new Set[0];
+        }
+
+        private boolean matches(double risk, String action, Set<String> triggered, JsonValue device) {
+            if ((minRisk != Double.NEGATIVE_INFINITY || maxRisk != Double.POSITIVE_INFINITY)
+                    && !(risk >= minRisk && risk < maxRisk)) {
+                return false;
+            }
+            if (actions != null && (action == null || !actions.contains(action))) {
+                return false;
+            }
+            if (noSignals && !triggered.isEmpty()) {
+                return false;
+            }
+            for (Set<String> anyOf : signals) {
+                if (Collections.disjoint(anyOf, triggered)) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < deviceFields.length; i++) {
+                JsonValue field = device.get(deviceFields[i]);
+                if (field.isNull() || !deviceValues[i].contains(String.valueOf(field.getObject()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
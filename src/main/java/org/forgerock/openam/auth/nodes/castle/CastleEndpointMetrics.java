@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * Records the metrics of the calls to one Castle API endpoint. The tagged metric names are built once per endpoint,
+ * so recording only updates the lock-free recorders of {@link CastleMetrics}.
+ */
+final class CastleEndpointMetrics {
+
+    static final String LATENCY = "castle.request.latency";
+    static final String ERRORS = "castle.request.errors";
+    static final String FALLBACKS = "castle.request.fallbacks";
+    static final String RISK = "castle.response.risk";
+    static final String ACTIONS = "castle.response.actions";
+
+    static final String CIRCUIT_OPEN = "circuit_open";
+    static final String TIMEOUT = "timeout";
+    static final String REJECTED = "rejected";
+    static final String SERVER_ERROR = "server_error";
+    static final String LIMITED = "limited";
+    static final String CANCELLED = "cancelled";
+
+    /* The policy actions documented by Castle; any other action is counted under OTHER_ACTION. */
+    private static final String[] KNOWN_ACTIONS = {"allow", "challenge", "deny"};
+    private static final String OTHER_ACTION = "other";
+
+    private static final ConcurrentMap<String, CastleEndpointMetrics> ENDPOINTS = new ConcurrentHashMap<>();
+
+    private final String endpoint;
+    private final String latency;
+    private final String errors;
+    private final String risk;
+    private final ConcurrentMap<String, String> fallbacks = new ConcurrentHashMap<>();
+    private final Map<String, String> actions = new HashMap<>();
+    private final String otherAction;
+
+    private CastleEndpointMetrics(String endpoint) {
+        this.endpoint = endpoint;
+        this.latency = CastleMetrics.withTag(LATENCY, "endpoint", endpoint);
+        this.errors = CastleMetrics.withTag(ERRORS, "endpoint", endpoint);
+        this.risk = CastleMetrics.withTag(RISK, "endpoint", endpoint);
+        String endpointActions = CastleMetrics.withTag(ACTIONS, "endpoint", endpoint);
+        for (String action : KNOWN_ACTIONS) {
+            actions.put(action, CastleMetrics.withTag(endpointActions, "action", action));
+        }
+        this.otherAction = CastleMetrics.withTag(endpointActions, "action", OTHER_ACTION);
+    }
+
+    /**
+     * Returns the recorder of an endpoint.
+     *
+     * @param endpoint The endpoint name, such as {@code risk}.
+     * @return The recorder.
+     */
+    static CastleEndpointMetrics forEndpoint(String endpoint) {
+        CastleEndpointMetrics recorder = ENDPOINTS.get(endpoint);
+        return recorder != null ? recorder : ENDPOINTS.computeIfAbsent(endpoint, CastleEndpointMetrics::new);
+    }
+
+    /**
+     * Records the duration of a call, whatever its result.
+     *
+     * @param metrics The Castle metrics.
+     * @param elapsedNanos The duration of the call.
+     */
+    void recordLatency(CastleMetrics metrics, long elapsedNanos) {
+        metrics.record(latency, CastleHistogram.LATENCY_MILLIS,
+                elapsedNanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Records a call that failed without a fallback.
+     *
+     * @param metrics The Castle metrics.
+     */
+    void recordError(CastleMetrics metrics) {
+        metrics.increment(errors);
+    }
+
+    /**
+     * Records the use of the failover strategy instead of a Castle response.
+     *
+     * @param metrics The Castle metrics.
+     * @param reason The reason, such as {@link #TIMEOUT}.
+     */
+    void recordFallback(CastleMetrics metrics, String reason) {
+        String name = fallbacks.get(reason);
+        if (name == null) {
+            name = fallbacks.computeIfAbsent(reason,
+                    r -> CastleMetrics.withTag(CastleMetrics.withTag(FALLBACKS, "endpoint", endpoint), "reason", r));
+        }
+        metrics.increment(name);
+    }
+
+    /**
+     * Records the risk and the policy action of a Castle response. Actions that Castle does not document are counted
+     * together, so that an unexpected response cannot create new metrics.
+     *
+     * @param metrics The Castle metrics.
+     * @param response The response as stored in shared state.
+     */
+    void recordResponse(CastleMetrics metrics, JsonValue response) {
+        JsonValue riskScore = response.get(CastleHelper.RISK);
+        if (riskScore.isNumber()) {
+            metrics.record(risk, CastleHistogram.RISK, riskScore.asDouble());
+        }
+        String action = response.get(CastleHelper.POLICY).get(CastleHelper.ACTION).asString();
+        if (action != null) {
+            // fallback decisions carry upper case actions
+            metrics.increment(actions.getOrDefault(action.toLowerCase(Locale.ROOT), otherAction));
+        }
+    }
+}
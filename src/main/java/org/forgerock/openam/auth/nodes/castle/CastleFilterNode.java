@@ -24,9 +24,9 @@ import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
+import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 
 import javax.inject.Inject;
 
@@ -43,6 +43,11 @@ public class CastleFilterNode extends CastleRequestNode {
         }
     }
 
+    private final CastlePrefetchCache prefetchCache;
+    private final CastleDecisionCache decisionCache;
+    private final CastleCallCoalescer callCoalescer;
+    private final CastleHedgers hedgers;
+
     /**
      * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
      * from the plugin.
@@ -51,9 +56,44 @@ public class CastleFilterNode extends CastleRequestNode {
      */
     @Inject
     public CastleFilterNode(@Assisted Config config, CoreWrapper coreWrapper,
-                          AnnotatedServiceRegistry serviceRegistry, @Assisted Realm realm)
+                          CastleServiceSnapshots serviceSnapshots, @Assisted Realm realm,
+                          CastleClientRegistry clientRegistry, CastleCircuitBreakers circuitBreakers,
+                          CastleIdentityCache identityCache, CastleCallExecutors callExecutors,
+                          CastleConcurrencyLimiters concurrencyLimiters, CastleMetrics metrics,
+                          CastlePrefetchCache prefetchCache, CastleDecisionCache decisionCache,
+                          CastleCallCoalescer callCoalescer, CastleHedgers hedgers)
             throws NodeProcessException {
-        super(config, coreWrapper, serviceRegistry, realm);
+        super(config, coreWrapper, serviceSnapshots, realm, clientRegistry, circuitBreakers,
+                identityCache, callExecutors, concurrencyLimiters, metrics);
+        this.prefetchCache = prefetchCache;
+        this.decisionCache = decisionCache;
+        this.callCoalescer = callCoalescer;
+        this.hedgers = hedgers;
+    }
+
+    @Override
+    protected CastlePrefetchedCall takePrefetched(TreeContext context, ImmutableMap<Object, Object> payload) {
+        return prefetchCache.take(context, CastlePrefetchCache.Endpoint.FILTER, payload);
+    }
+
+    @Override
+    protected CastleDecisionCache decisionCache() {
+        return decisionCache;
+    }
+
+    @Override
+    protected CastleCallCoalescer callCoalescer() {
+        return callCoalescer;
+    }
+
+    @Override
+    protected CastleHedger hedger() {
+        return hedgers.get(realm, castleService, endpoint());
+    }
+
+    @Override
+    protected String endpoint() {
+        return "filter";
     }
 
     @Override
@@ -0,0 +1,122 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.openam.auth.node.api.SharedStateConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.castle.client.Castle;
+
+/**
+ * Identifies a Castle call by its endpoint and a chosen set of payload fields, so that calls for the same attempt can
+ * share a decision even though their headers differ.
+ * <p>
+ * Fingerprints are parsed once per distinct field list of the Castle Service and shared through a
+ * {@link CastleCompiledCache}.
+ * </p>
+ */
+final class CastleFingerprint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("amAuth");
+    private static final CastleCompiledCache<CastleFingerprint> FINGERPRINTS =
+            new CastleCompiledCache<>(CastleFingerprint::parse);
+
+    private final Set<Field> fields;
+
+    private CastleFingerprint(Set<Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Returns the fingerprint built from the given fields. Unknown field names are ignored; when no known field is
+     * given, every field is used.
+     *
+     * @param names The field names, such as {@code USER_ID}.
+     * @return The fingerprint.
+     */
+    static CastleFingerprint of(List<String> names) {
+        return FINGERPRINTS.get(names);
+    }
+
+    private static CastleFingerprint parse(List<String> names) {
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        for (String name : names) {
+            try {
+                fields.add(Field.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Ignoring unknown Castle fingerprint field: {}", name);
+            }
+        }
+        return new CastleFingerprint(fields.isEmpty() ? EnumSet.allOf(Field.class) : fields);
+    }
+
+    /**
+     * Builds the key of a call.
+     *
+     * @param endpoint The endpoint the call is sent to.
+     * @param payload The payload of the call.
+     * @return The key.
+     */
+    String keyOf(String endpoint, ImmutableMap<Object, Object> payload) {
+        StringBuilder key = new StringBuilder(endpoint);
+        for (Field field : fields) {
+            key.append('\u0000').append(valueOf(field, payload));
+        }
+        return key.toString();
+    }
+
+    private static Object valueOf(Field field, ImmutableMap<Object, Object> payload) {
+        switch (field) {
+        case EVENT:
+            return payload.get(Castle.KEY_EVENT);
+        case STATUS:
+            return payload.get(Castle.KEY_STATUS);
+        case USER_ID:
+            Object user = payload.get(Castle.KEY_USER);
+            if (!(user instanceof Map)) {
+                return null;
+            }
+            // an unknown user has no id; tell unknown usernames apart, and apart from the ids of known users
+            Object id = ((Map<?, ?>) user).get("id");
+            Object username = ((Map<?, ?>) user).get(SharedStateConstants.USERNAME);
+            return id != null ? "id:" + id : username != null ? "username:" + username : null;
+        case IP:
+            Object context = payload.get(Castle.KEY_CONTEXT);
+            return context instanceof Map ? ((Map<?, ?>) context).get(Castle.KEY_IP) : null;
+        case REQUEST_TOKEN:
+            return payload.get(Castle.KEY_REQUEST_TOKEN);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * The payload fields a fingerprint can be built from.
+     */
+    enum Field {
+        EVENT, STATUS, USER_ID, IP, REQUEST_TOKEN
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Selects the HTTP headers sent to Castle, compiled once from the allow and deny lists of a {@link CastleService}.
+ * <p>
+ * With an allow list only the allow listed headers are looked up, in the order of the list. Without one every
+ * request header is sent in request order. Denied headers are never sent. Header names are matched
+ * case-insensitively.
+ * </p>
+ */
+final class CastleHeaderFilter {
+
+    private static final int DEFAULT_HEADER_COUNT = 16;
+
+    private final boolean allowListOnly;
+    private final List<String> allowed;
+    private final Set<String> denied;
+    private final int initialCapacity;
+
+    /**
+     * Compiles the filter.
+     *
+     * @param allowListedHeaders The allow listed headers. Empty or {@code null} to allow every header.
+     * @param denyListedHeaders The deny listed headers.
+     */
+    CastleHeaderFilter(List<String> allowListedHeaders, List<String> denyListedHeaders) {
+        this.denied = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        if (denyListedHeaders != null) {
+            for (String header : denyListedHeaders) {
+                denied.add(header.trim());
+            }
+        }
+        Set<String> seen = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        List<String> allowList = new ArrayList<>();
+        if (allowListedHeaders != null) {
+            for (String header : allowListedHeaders) {
+                String name = header.trim();
+                if (!name.isEmpty() && !denied.contains(name) && seen.add(name)) {
+                    allowList.add(name);
+                }
+            }
+        }
+        this.allowListOnly = allowListedHeaders != null && !allowListedHeaders.isEmpty();
+        this.allowed = Collections.unmodifiableList(allowList);
+        this.initialCapacity = (allowListOnly ? allowList.size() : DEFAULT_HEADER_COUNT) * 4 / 3 + 1;
+    }
+
+    /**
+     * Returns the headers of the request that may be sent to Castle.
+     *
+     * @param request The HTTP request.
+     * @return The headers, by name.
+     */
+    Map<String, Object> filter(HttpServletRequest request) {
+        Map<String, Object> headers = new LinkedHashMap<>(initialCapacity);
+        if (request == null) {
+            return headers;
+        }
+        if (allowListOnly) {
+            for (String name : allowed) {
+                String value = request.getHeader(name);
+                if (value != null) {
+                    headers.put(name, value);
+                }
+            }
+            return headers;
+        }
+        Enumeration<?> names = request.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            if (!denied.contains(name)) {
+                headers.put(name, request.getHeader(name));
+            }
+        }
+        return headers;
+    }
+}
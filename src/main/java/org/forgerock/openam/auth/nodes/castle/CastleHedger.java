@@ -0,0 +1,240 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+
+import io.castle.client.model.CastleResponse;
+
+/**
+ * Sends a second, identical Castle call when the first one has not answered within a delay taken from the recent
+ * latency of the endpoint, and uses whichever response arrives first.
+ * <p>
+ * The delay is the configured percentile of the latencies of the current and previous minute, but never less than
+ * the minimum delay. Hedges are capped at a percentage of the calls of the same period, so that a slow Castle API
+ * does not receive twice the traffic. Hedging needs an executor, so calls are sent once in the synchronous call
+ * mode.
+ * </p>
+ */
+class CastleHedger {
+
+    static final String SENT = "castle.hedge.sent";
+    static final String WINS = "castle.hedge.wins";
+    static final String OVER_BUDGET = "castle.hedge.over_budget";
+    static final String DELAY = "castle.hedge.delay";
+
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_SAMPLES = 100;
+
+    private final CastleMetrics metrics;
+    private final String sent;
+    private final String wins;
+    private final String overBudget;
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMillis;
+    private final int budgetPercent;
+
+    private volatile Window current = new Window(System.nanoTime());
+    private volatile Window previous;
+    private volatile long delayMillis;
+    private volatile long delayComputedAt;
+
+    CastleHedger(String endpoint, CastleService castleService, CastleMetrics metrics) {
+        this.metrics = metrics;
+        this.sent = CastleMetrics.withTag(SENT, "endpoint", endpoint);
+        this.wins = CastleMetrics.withTag(WINS, "endpoint", endpoint);
+        this.overBudget = CastleMetrics.withTag(OVER_BUDGET, "endpoint", endpoint);
+        this.enabled = castleService.hedgingEnabled();
+        this.percentile = Math.min(100, Math.max(1, castleService.hedgingPercentile()));
+        this.minDelayMillis = Math.max(1, castleService.hedgingMinDelay());
+        this.budgetPercent = Math.max(0, castleService.hedgingBudget());
+        this.delayMillis = minDelayMillis;
+    }
+
+    /**
+     * Sends a call, hedging it when it is slow.
+     *
+     * @param callExecutor The executor of the realm's Castle calls.
+     * @param call The call.
+     * @param timeoutMillis The deadline of the call in milliseconds, hedge included.
+     * @return The first response.
+     * @throws NodeProcessException If the call fails with a node error.
+     * @throws TimeoutException If no response arrives before the deadline.
+     */
+    CastleResponse call(CastleCallExecutor callExecutor, CastleCallExecutor.CastleCall<CastleResponse> call,
+            long timeoutMillis) throws NodeProcessException, TimeoutException {
+        if (!enabled || callExecutor.isSynchronous()) {
+            return callExecutor.call(call, timeoutMillis);
+        }
+        Window window = window();
+        window.calls.increment();
+        long start = System.nanoTime();
+        long delay = delayMillis();
+        if (timeoutMillis > 0 && delay >= timeoutMillis) {
+            return callExecutor.call(timed(call), timeoutMillis);
+        }
+
+        CompletableFuture<CastleResponse> first = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Future<?> primary = callExecutor.submit(race(call, first, pending, failure, false));
+        Future<?> hedge = null;
+        try {
+            CastleResponse response = within(first, delay);
+            if (response != null) {
+                return response;
+            }
+            if (first.isDone()) {
+                return callExecutor.await(first, 0);
+            } else if (window.hedges.sum() * 100 >= (long) budgetPercent * window.calls.sum()) {
+                metrics.increment(overBudget);
+            } else {
+                pending.incrementAndGet();
+                try {
+                    hedge = callExecutor.submit(race(call, first, pending, failure, true));
+                    window.hedges.increment();
+                    metrics.increment(sent);
+                } catch (RejectedExecutionException e) {
+                    if (pending.decrementAndGet() == 0) {
+                        // the primary failed while the hedge was being submitted, and left the result to it
+                        first.completeExceptionally(failure.get());
+                    }
+                }
+            }
+            long remaining = timeoutMillis > 0
+                    ? timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    : 0;
+            if (timeoutMillis > 0 && remaining <= 0) {
+                throw new TimeoutException("Castle call exceeded its deadline");
+            }
+            return callExecutor.await(first, remaining);
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    /* Waits for the first response up to the hedge delay, returning null if there is none yet. */
+    private static CastleResponse within(CompletableFuture<CastleResponse> first, long delayMillis)
+            throws NodeProcessException, TimeoutException {
+        try {
+            return first.get(delayMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Interrupted while waiting for Castle");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            throw CastleCallExecutor.unwrap(e);
+        }
+    }
+
+    /*
+     * Runs one of the racing calls: the first response wins, and the call fails only if every call failed. The first
+     * failure is kept, for the caller to fail with if the other call cannot be submitted.
+     */
+    private CastleCallExecutor.CastleCall<Void> race(CastleCallExecutor.CastleCall<CastleResponse> call,
+            CompletableFuture<CastleResponse> first, AtomicInteger pending, AtomicReference<Exception> failure,
+            boolean isHedge) {
+        return () -> {
+            try {
+                CastleResponse response = timed(call).call();
+                if (first.complete(response) && isHedge) {
+                    metrics.increment(wins);
+                }
+            } catch (RuntimeException | NodeProcessException e) {
+                failure.compareAndSet(null, e);
+                if (pending.decrementAndGet() == 0) {
+                    first.completeExceptionally(e);
+                }
+            }
+            return null;
+        };
+    }
+
+    /* Records the latency of the successful calls, which the hedge delay is computed from. */
+    private CastleCallExecutor.CastleCall<CastleResponse> timed(CastleCallExecutor.CastleCall<CastleResponse> call) {
+        return () -> {
+            long start = System.nanoTime();
+            CastleResponse response = call.call();
+            window().latencies.record((System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1));
+            return response;
+        };
+    }
+
+    long delayMillis() {
+        long now = System.nanoTime();
+        if (now - delayComputedAt < DELAY_REFRESH_NANOS) {
+            return delayMillis;
+        }
+        delayComputedAt = now;
+        CastleHistogram.Snapshot latest = current.latencies.snapshot();
+        Window older = previous;
+        CastleHistogram.Snapshot basis = latest.count() >= MIN_SAMPLES || older == null
+                ? latest
+                : older.latencies.snapshot();
+        long delay = basis.count() >= MIN_SAMPLES
+                ? Math.max(minDelayMillis, (long) Math.ceil(basis.percentile(percentile)))
+                : delayMillis;
+        delayMillis = delay;
+        return delay;
+    }
+
+    /* Returns the window of the current minute, starting a new one when the minute has passed. */
+    private Window window() {
+        Window window = current;
+        long now = System.nanoTime();
+        if (now - window.startedAt < WINDOW_NANOS) {
+            return window;
+        }
+        synchronized (this) {
+            if (current == window) {
+                previous = window;
+                current = new Window(now);
+            }
+            return current;
+        }
+    }
+
+    private static final class Window {
+        private final long startedAt;
+        private final CastleHistogram latencies = new CastleHistogram(CastleHistogram.LATENCY_MILLIS);
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+
+        private Window(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
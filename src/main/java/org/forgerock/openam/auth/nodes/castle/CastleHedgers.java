@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+
+/**
+ * Holds the {@link CastleHedger} of each realm and endpoint. A hedger, and the latencies it has observed, are
+ * replaced when the realm's hedging settings change.
+ */
+@Singleton
+public class CastleHedgers {
+
+    private final ConcurrentMap<String, EndpointHedger> hedgers = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the hedger holder.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleHedgers(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the hedger of an endpoint of the realm.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param endpoint The endpoint the node calls.
+     * @return The hedger.
+     */
+    CastleHedger get(Realm realm, CastleService castleService, String endpoint) {
+        String key = realm.asPath() + '\u0000' + endpoint;
+        List<Object> settings = Arrays.asList(castleService.hedgingEnabled(), castleService.hedgingPercentile(),
+                castleService.hedgingMinDelay(), castleService.hedgingBudget());
+        EndpointHedger current = hedgers.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current.hedger;
+        }
+        synchronized (hedgers) {
+            current = hedgers.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current.hedger;
+            }
+            CastleHedger hedger = new CastleHedger(endpoint, castleService, metrics);
+            hedgers.put(key, new EndpointHedger(settings, hedger));
+            metrics.gauge(CastleMetrics.forRealm(CastleMetrics.withTag(CastleHedger.DELAY, "endpoint", endpoint),
+                    realm.asPath()), hedger::delayMillis);
+            return hedger;
+        }
+    }
+
+    private static final class EndpointHedger {
+        private final List<Object> settings;
+        private final CastleHedger hedger;
+
+        private EndpointHedger(List<Object> settings, CastleHedger hedger) {
+            this.settings = settings;
+            this.hedger = hedger;
+        }
+    }
+}
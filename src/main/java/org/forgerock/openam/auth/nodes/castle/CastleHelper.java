@@ -8,6 +8,8 @@ public class CastleHelper {
     static final String APP_ID = "app_id";
     static final String REQUEST_TOKEN = "request_token";
     static final String CASTLE_RESPONSE = "castle_response";
+    static final String USER_CONTEXT = "castle_user_context";
+    static final String PREFETCH_ID = "castle_prefetch_id";
     static final String POLICY = "policy";
     static final String ACTION = "action";
     static final String RISK = "risk";
@@ -19,7 +21,9 @@ public class CastleHelper {
             "script.type = 'text/javascript';\n" +
             "script.src = '%1$s'\n" +
             "document.getElementsByTagName('head')[0].appendChild(script);\n" +
-            "var submitCollectedData = function functionSubmitCollectedData() {\n" +
+            "%2$s";
+    /* Creates the request token on submit. Registered as soon as the page runs the script. */
+    static final String SUBMIT_HOOK = "var submitCollectedData = function functionSubmitCollectedData() {\n" +
             "_castle('createRequestToken').then(function(requestToken) {" +
             "loginHelpers.setHiddenCallback('request_token', requestToken)})}\n" +
             "if (typeof loginHelpers !== 'undefined') {\n" +
@@ -38,6 +42,14 @@ public class CastleHelper {
                                                    " in sharedState. Does the Castle Risk node precede" +
                                                    " this node and return a successful response?");
         }
-        return context.sharedState.get(CASTLE_RESPONSE);
+        JsonValue response = context.sharedState.get(CASTLE_RESPONSE);
+        if (CastleResponseCodec.isEncoded(response)) {
+            try {
+                return CastleResponseCodec.decode(response.asString());
+            } catch (IllegalArgumentException e) {
+                throw new NodeProcessException("Unable to decode Castle " + CASTLE_RESPONSE + " in sharedState", e);
+            }
+        }
+        return response;
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with fixed bucket bounds, in the style of Prometheus histograms.
+ * <p>
+ * Recording a value increments the counter of its bucket, the total count and sum, and the maximum, all with
+ * striped adders, so concurrent login threads do not contend. Percentiles are estimated from the buckets, by linear
+ * interpolation within the bucket the percentile falls into.
+ * </p>
+ */
+final class CastleHistogram {
+
+    /** Latency bounds in milliseconds. */
+    static final double[] LATENCY_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    /** Bounds of a Castle risk score. */
+    static final double[] RISK = {0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1};
+
+    private final double[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+    /**
+     * Creates a histogram.
+     *
+     * @param bounds The inclusive upper bounds of the buckets, in increasing order. Values above the last bound are
+     *               counted in an overflow bucket.
+     */
+    CastleHistogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value The value. Ignored when not a number.
+     */
+    void record(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        int index = Arrays.binarySearch(bounds, value);
+        buckets[index >= 0 ? index : -index - 1].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns a point-in-time view of the histogram. Concurrent recordings may be partially included.
+     *
+     * @return The snapshot.
+     */
+    Snapshot snapshot() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        long total = count.sum();
+        return new Snapshot(bounds, counts, total, sum.sum(), total == 0 ? 0 : max.get());
+    }
+
+    /**
+     * A point-in-time view of a histogram.
+     */
+    static final class Snapshot {
+        private final double[] bounds;
+        private final long[] counts;
+        private final long count;
+        private final double sum;
+        private final double max;
+
+        private Snapshot(double[] bounds, long[] counts, long count, double sum, double max) {
+            this.bounds = bounds;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        double sum() {
+            return sum;
+        }
+
+        double max() {
+            return max;
+        }
+
+        double mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * Estimates a percentile by linear interpolation between the bounds of its bucket, assuming the values of a
+         * bucket are spread evenly. The estimate never exceeds the maximum, which is also the estimate for the
+         * overflow bucket.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The estimated value.
+         */
+        double percentile(double percentile) {
+            long total = 0;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (seen + counts[i] >= rank) {
+                    if (i == bounds.length) {
+                        return max;
+                    }
+                    double lower = i == 0 ? 0 : bounds[i - 1];
+                    double estimate = lower + (bounds[i] - lower) * (rank - seen) / counts[i];
+                    return Math.min(estimate, max);
+                }
+                seen += counts[i];
+            }
+            return max;
+        }
+
+        /**
+         * Returns the cumulative count of values less than or equal to each bound, the last one being the count of
+         * every value.
+         *
+         * @return The cumulative counts, one more than the bounds.
+         */
+        long[] cumulativeCounts() {
+            long[] cumulative = new long[counts.length];
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                cumulative[i] = seen;
+            }
+            return cumulative;
+        }
+
+        double[] bounds() {
+            return bounds.clone();
+        }
+    }
+}
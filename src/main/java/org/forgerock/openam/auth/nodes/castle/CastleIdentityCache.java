@@ -0,0 +1,327 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.security.AccessController;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.security.AdminTokenAction;
+
+/**
+ * A bounded, TTL-based cache of the user data the Castle request nodes resolve from the identity repository, so
+ * that chained Castle nodes do not each go back to the directory.
+ * <p>
+ * Entries are keyed by realm, mail attribute and username and hold the resolved email and universal id. Users that
+ * do not exist are only cached when negative caching is enabled, because registration trees create them later in
+ * the journey. When invalidation is enabled, identity change events of the realm evict the affected entries: the
+ * entries of the changed universal id, and the negative entries of its username, so that a user created while a
+ * negative entry is cached is found straight away. Both are found through an index rather than by scanning the cache.
+ * </p>
+ * <p>
+ * Every entry lives for the same time, so each realm keeps its entries in insertion order, which is also their expiry
+ * order, and a new entry only drops the expired or excess entries at the head.
+ * </p>
+ */
+@Singleton
+public class CastleIdentityCache {
+
+    static final String HITS = "castle.identity_cache.hits";
+    static final String MISSES = "castle.identity_cache.misses";
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final ConcurrentMap<String, RealmCache> caches = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the cache.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleIdentityCache(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the identity of a user, from the cache when possible.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param identityRealm The realm the identity is looked up in.
+     * @param username The username.
+     * @param mailAttribute The attribute the email is read from.
+     * @param loader Resolves the identity when it is not cached.
+     * @return The identity.
+     * @throws IdRepoException If the identity could not be resolved.
+     * @throws SSOException If the identity could not be resolved.
+     */
+    Identity get(Realm realm, CastleService castleService, String identityRealm, String username,
+            String mailAttribute, IdentityLoader loader) throws IdRepoException, SSOException {
+        if (castleService.identityCacheTtl() <= 0 || username == null) {
+            return loader.load();
+        }
+        String key = identityRealm + '\u0000' + mailAttribute + '\u0000' + username;
+        return cacheFor(realm, castleService).get(key, username, loader);
+    }
+
+    private RealmCache cacheFor(Realm realm, CastleService castleService) {
+        String key = realm.asPath();
+        List<Object> settings = Arrays.asList(castleService.identityCacheTtl(), castleService.identityCacheSize(),
+                castleService.identityNegativeCaching(), castleService.identityCacheInvalidation());
+        RealmCache current = caches.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current;
+        }
+        synchronized (caches) {
+            current = caches.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current;
+            }
+            RealmCache cache = new RealmCache(settings, castleService);
+            if (castleService.identityCacheInvalidation() && (current == null || !current.listening)) {
+                cache.listening = listen(key);
+            } else if (current != null) {
+                cache.listening = current.listening;
+            }
+            caches.put(key, cache);
+            return cache;
+        }
+    }
+
+    /* Registers a single listener per realm, which always evicts from the realm's current cache. */
+    private boolean listen(String realm) {
+        try {
+            SSOToken adminToken = AccessController.doPrivileged(AdminTokenAction.getInstance());
+            new AMIdentityRepository(realm, adminToken).addEventListener(new IdEventListener() {
+                @Override
+                public void identityDeleted(String universalId) {
+                    evict(realm, universalId);
+                }
+
+                @Override
+                public void identityRenamed(String universalId) {
+                    evict(realm, universalId);
+                }
+
+                @Override
+                public void identityChanged(String universalId) {
+                    evict(realm, universalId);
+                }
+
+                @Override
+                public void allIdentitiesChanged() {
+                    RealmCache current = caches.get(realm);
+                    if (current != null) {
+                        current.clear();
+                    }
+                }
+            });
+            return true;
+        } catch (IdRepoException | SSOException e) {
+            logger.warn("Unable to listen to identity changes of realm {}. Castle identity cache entries will "
+                    + "only expire.", realm, e);
+            return false;
+        }
+    }
+
+    private void evict(String realm, String universalId) {
+        RealmCache current = caches.get(realm);
+        if (current != null) {
+            current.evict(universalId);
+        }
+    }
+
+    /* Returns the username of a universal id such as id=demo,ou=user,..., in lower case, or null. */
+    private static String usernameOf(String universalId) {
+        if (!universalId.regionMatches(true, 0, "id=", 0, 3)) {
+            return null;
+        }
+        int end = universalId.indexOf(',');
+        return (end < 0 ? universalId.substring(3) : universalId.substring(3, end)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Resolves an identity from the identity repository.
+     */
+    interface IdentityLoader {
+        Identity load() throws IdRepoException, SSOException;
+    }
+
+    /**
+     * The user data the Castle payload needs from the identity repository.
+     */
+    static final class Identity {
+        static final Identity NOT_FOUND = new Identity(false, null, null);
+
+        private final boolean exists;
+        private final String email;
+        private final String universalId;
+
+        Identity(boolean exists, String email, String universalId) {
+            this.exists = exists;
+            this.email = email;
+            this.universalId = universalId;
+        }
+
+        boolean exists() {
+            return exists;
+        }
+
+        String email() {
+            return email;
+        }
+
+        String universalId() {
+            return universalId;
+        }
+    }
+
+    private final class RealmCache {
+        private final List<Object> settings;
+        /* In insertion order, which is also expiry order since every entry lives for the same time. */
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        /* The keys of the entries of each universal id, and of the negative entries of each username. */
+        private final Map<String, Set<String>> keysByUniversalId = new HashMap<>();
+        private final Map<String, Set<String>> negativeKeysByUsername = new HashMap<>();
+        private final long ttlNanos;
+        private final int maxSize;
+        private final boolean negativeCaching;
+        private volatile boolean listening;
+
+        private RealmCache(List<Object> settings, CastleService castleService) {
+            this.settings = settings;
+            this.ttlNanos = TimeUnit.SECONDS.toNanos(castleService.identityCacheTtl());
+            this.maxSize = Math.max(1, castleService.identityCacheSize());
+            this.negativeCaching = castleService.identityNegativeCaching();
+        }
+
+        private Identity get(String key, String username, IdentityLoader loader)
+                throws IdRepoException, SSOException {
+            Identity cached = cached(key);
+            if (cached != null) {
+                metrics.increment(HITS);
+                return cached;
+            }
+            metrics.increment(MISSES);
+            Identity identity = loader.load();
+            if (identity.exists || negativeCaching) {
+                String indexKey = identity.exists && identity.universalId != null
+                        ? identity.universalId.toLowerCase(Locale.ROOT)
+                        : username.toLowerCase(Locale.ROOT);
+                // an event racing with this load may miss the entry; it then still expires with the TTL
+                put(key, new Entry(identity, System.nanoTime(), indexKey));
+            }
+            return identity;
+        }
+
+        private synchronized Identity cached(String key) {
+            Entry entry = entries.get(key);
+            return entry != null && System.nanoTime() - entry.loadedAt < ttlNanos ? entry.identity : null;
+        }
+
+        private synchronized void put(String key, Entry entry) {
+            // the previous entry is removed first, so that the new one moves to the tail of the insertion order
+            Entry previous = entries.remove(key);
+            if (previous != null) {
+                unindex(key, previous);
+            }
+            evictEntries(entry.loadedAt);
+            entries.put(key, entry);
+            indexFor(entry.identity).computeIfAbsent(entry.indexKey, k -> new HashSet<>()).add(key);
+        }
+
+        /* Evicts the entries of a changed identity, and the negative entries of its username. */
+        private synchronized void evict(String universalId) {
+            removeAll(keysByUniversalId.remove(universalId.toLowerCase(Locale.ROOT)));
+            String username = usernameOf(universalId);
+            if (username != null) {
+                removeAll(negativeKeysByUsername.remove(username));
+            }
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+            keysByUniversalId.clear();
+            negativeKeysByUsername.clear();
+        }
+
+        private void removeAll(Set<String> keys) {
+            if (keys != null) {
+                keys.forEach(entries::remove);
+            }
+        }
+
+        private Map<String, Set<String>> indexFor(Identity identity) {
+            return identity.exists && identity.universalId != null ? keysByUniversalId : negativeKeysByUsername;
+        }
+
+        /* Drops the expired entries, then the oldest ones until there is room for a new entry. Called locked. */
+        private void evictEntries(long now) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> next = iterator.next();
+                if (now - next.getValue().loadedAt < ttlNanos && entries.size() < maxSize) {
+                    break;
+                }
+                iterator.remove();
+                unindex(next.getKey(), next.getValue());
+            }
+        }
+
+        private void unindex(String key, Entry entry) {
+            indexFor(entry.identity).computeIfPresent(entry.indexKey, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private static final class Entry {
+        private final Identity identity;
+        private final long loadedAt;
+        private final String indexKey;
+
+        private Entry(Identity identity, long loadedAt, String indexKey) {
+            this.identity = identity;
+            this.loadedAt = loadedAt;
+            this.indexKey = indexKey;
+        }
+    }
+}
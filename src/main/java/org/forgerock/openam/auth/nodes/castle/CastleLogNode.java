@@ -21,20 +21,29 @@ import com.google.common.collect.ImmutableMap;
 import com.google.inject.assistedinject.Assisted;
 import io.castle.client.model.CastleResponse;
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.*;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 
 import javax.inject.Inject;
-import java.util.Map;
 
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
         configClass = CastleLogNode.Config.class, tags = {"risk"})
 public class CastleLogNode extends CastleRequestNode {
     public interface Config extends CastleRequestNode.Config {
+        /**
+         * Asynchronous
+         */
+        @Attribute(order = 1000)
+        default boolean asynchronous() {
+            return false;
+        }
     }
 
+    private final CastleLogPipeline logPipeline;
+    private final boolean asynchronous;
+
     /**
      * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
      * from the plugin.
@@ -43,9 +52,31 @@ public class CastleLogNode extends CastleRequestNode {
      */
     @Inject
     public CastleLogNode(@Assisted Config config, CoreWrapper coreWrapper,
-                         AnnotatedServiceRegistry serviceRegistry, @Assisted Realm realm)
+                         CastleServiceSnapshots serviceSnapshots, @Assisted Realm realm,
+                         CastleClientRegistry clientRegistry, CastleCircuitBreakers circuitBreakers,
+                         CastleIdentityCache identityCache, CastleCallExecutors callExecutors,
+                         CastleConcurrencyLimiters concurrencyLimiters, CastleMetrics metrics,
+                         CastleLogPipeline logPipeline)
             throws NodeProcessException {
-        super(config, coreWrapper, serviceRegistry, realm);
+        super(config, coreWrapper, serviceSnapshots, realm, clientRegistry, circuitBreakers,
+                identityCache, callExecutors, concurrencyLimiters, metrics);
+        this.logPipeline = logPipeline;
+        this.asynchronous = config.asynchronous();
+    }
+
+    @Override
+    public Action process(TreeContext context) throws NodeProcessException {
+        if (!asynchronous) {
+            return super.process(context);
+        }
+        logger.debug("Queueing Castle log event");
+        logPipeline.submit(realm, castleService, castle, buildPayload(context));
+        return goToNext().replaceSharedState(context.sharedState).build();
+    }
+
+    @Override
+    protected String endpoint() {
+        return "log";
     }
 
     @Override
@@ -60,6 +91,6 @@ public class CastleLogNode extends CastleRequestNode {
 
     @Override
     protected Action nextAction(TreeContext context, JsonValue response) {
-        return goToNext().build();
+        return goToNext().replaceSharedState(context.sharedState).build();
     }
 }
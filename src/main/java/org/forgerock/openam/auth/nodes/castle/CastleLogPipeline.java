@@ -0,0 +1,247 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.castle.client.Castle;
+import io.castle.client.model.CastleRuntimeException;
+
+/**
+ * Sends Castle log events in the background, so that the Castle Log Node does not wait for a fire-and-forget call.
+ * <p>
+ * Each realm gets a bounded in-memory queue, sized from its {@link CastleService} settings. A sender thread drains
+ * the queue in batches of up to {@link CastleService#logBatchSize()} events, waiting at most
+ * {@link CastleService#logLingerTime()} milliseconds for a batch to fill, and dispatches the events with at most
+ * {@link CastleService#logMaxInFlight()} requests in flight. The Castle API has no bulk log endpoint, so a batch is
+ * the unit of draining and dispatching rather than a single HTTP request.
+ * </p>
+ */
+@Singleton
+public class CastleLogPipeline {
+
+    static final String ENQUEUED = "castle.log.enqueued";
+    static final String DROPPED = "castle.log.dropped";
+    static final String SENT = "castle.log.sent";
+    static final String FAILED = "castle.log.failed";
+
+    private static final long SHUTDOWN_GRACE_MILLIS = 2000;
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final ConcurrentMap<String, RealmQueue> queues = new ConcurrentHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the pipeline.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastleLogPipeline(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues a log payload for the realm. Never blocks: when the queue is full the realm's overflow policy decides
+     * which event is dropped.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param castle The realm's Castle client.
+     * @param payload The log payload.
+     */
+    void submit(Realm realm, CastleService castleService, Castle castle, ImmutableMap<Object, Object> payload) {
+        queueFor(realm.asPath(), castleService, castle).offer(payload);
+    }
+
+    /**
+     * Stops every sender, giving queued events a short grace period to be sent. Called when the plugin shuts down.
+     */
+    void shutdown() {
+        List<RealmQueue> stopped;
+        synchronized (queues) {
+            stopped = new ArrayList<>(queues.values());
+            queues.clear();
+        }
+        stopped.forEach(RealmQueue::stop);
+    }
+
+    private RealmQueue queueFor(String key, CastleService castleService, Castle castle) {
+        List<Object> settings = Arrays.asList(castle, castleService.logQueueCapacity(),
+                castleService.logBatchSize(), castleService.logLingerTime(), castleService.logMaxInFlight(),
+                castleService.logOverflowPolicy());
+        RealmQueue current = queues.get(key);
+        if (current != null && current.settings.equals(settings)) {
+            return current;
+        }
+        RealmQueue queue;
+        synchronized (queues) {
+            current = queues.get(key);
+            if (current != null && current.settings.equals(settings)) {
+                return current;
+            }
+            queue = new RealmQueue(key, settings, castleService, castle);
+            queues.put(key, queue);
+        }
+        // stopping waits for the old senders, so it is left to a background thread rather than the login thread
+        if (current != null) {
+            Thread stopper = new Thread(current::stop, "castle-log-stopper-" + key);
+            stopper.setDaemon(true);
+            stopper.start();
+        }
+        return queue;
+    }
+
+    /**
+     * What to do with a log event when the realm's queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the event being submitted. */
+        DROP_NEWEST,
+        /** Drop the oldest queued event to make room for the new one. */
+        DROP_OLDEST
+    }
+
+    private final class RealmQueue implements Runnable {
+        private final List<Object> settings;
+        private final Castle castle;
+        private final BlockingQueue<ImmutableMap<Object, Object>> queue;
+        private final int batchSize;
+        private final long lingerMillis;
+        private final OverflowPolicy overflowPolicy;
+        private final Semaphore inFlight;
+        private final ExecutorService senders;
+        private final Thread drainer;
+        private volatile boolean running = true;
+
+        private RealmQueue(String key, List<Object> settings, CastleService castleService, Castle castle) {
+            this.settings = settings;
+            this.castle = castle;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, castleService.logQueueCapacity()));
+            this.batchSize = Math.max(1, castleService.logBatchSize());
+            this.lingerMillis = Math.max(0, castleService.logLingerTime());
+            this.overflowPolicy = castleService.logOverflowPolicy();
+            int maxInFlight = Math.max(1, castleService.logMaxInFlight());
+            this.inFlight = new Semaphore(maxInFlight);
+            this.senders = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+                Thread thread = new Thread(runnable, "castle-log-sender-" + key);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.drainer = new Thread(this, "castle-log-drainer-" + key);
+            this.drainer.setDaemon(true);
+            this.drainer.start();
+        }
+
+        private void offer(ImmutableMap<Object, Object> payload) {
+            if (!running) {
+                metrics.increment(DROPPED);
+                return;
+            }
+            while (!queue.offer(payload)) {
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST || queue.poll() == null) {
+                    metrics.increment(DROPPED);
+                    return;
+                }
+                metrics.increment(DROPPED);
+            }
+            metrics.increment(ENQUEUED);
+        }
+
+        @Override
+        public void run() {
+            List<ImmutableMap<Object, Object>> batch = new ArrayList<>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    fillBatch(batch);
+                    for (ImmutableMap<Object, Object> payload : batch) {
+                        inFlight.acquire();
+                        senders.execute(() -> send(payload));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void fillBatch(List<ImmutableMap<Object, Object>> batch) throws InterruptedException {
+            ImmutableMap<Object, Object> first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (batch.size() < batchSize) {
+                long remaining = deadline - System.nanoTime();
+                ImmutableMap<Object, Object> next = remaining > 0
+                        ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                        : queue.poll();
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+            }
+        }
+
+        private void send(ImmutableMap<Object, Object> payload) {
+            try {
+                castle.client().log(payload);
+                metrics.increment(SENT);
+            } catch (CastleRuntimeException e) {
+                metrics.increment(FAILED);
+                logger.warn("Failure when sending a queued Castle log event: " + e.getClass());
+            } finally {
+                inFlight.release();
+            }
+        }
+
+        private void stop() {
+            running = false;
+            try {
+                drainer.join(SHUTDOWN_GRACE_MILLIS);
+                senders.shutdown();
+                senders.awaitTermination(SHUTDOWN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drainer.interrupt();
+            senders.shutdownNow();
+        }
+    }
+}
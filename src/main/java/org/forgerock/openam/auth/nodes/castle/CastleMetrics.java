@@ -0,0 +1,143 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.inject.Singleton;
+
+/**
+ * Lock-free counters, gauges and histograms shared by the Castle nodes and their background workers. They are
+ * published over JMX by {@link CastleMetricsJmx}.
+ */
+@Singleton
+public class CastleMetrics {
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CastleHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the name of a metric scoped to a realm.
+     *
+     * @param name The metric name.
+     * @param realm The realm path.
+     * @return The realm-scoped metric name.
+     */
+    static String forRealm(String name, String realm) {
+        return withTag(name, "realm", realm);
+    }
+
+    /**
+     * Returns the name of a metric with a tag, such as the Castle endpoint or the reason of a fallback. Tags are
+     * appended to the tags the name already has.
+     *
+     * @param name The metric name.
+     * @param tag The tag name.
+     * @param value The tag value.
+     * @return The tagged metric name.
+     */
+    static String withTag(String name, String tag, String value) {
+        if (name.endsWith("}")) {
+            return name.substring(0, name.length() - 1) + "," + tag + "=" + value + "}";
+        }
+        return name + "{" + tag + "=" + value + "}";
+    }
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     *
+     * @param name The counter name.
+     * @return The counter.
+     */
+    LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Increments the counter with the given name.
+     *
+     * @param name The counter name.
+     */
+    void increment(String name) {
+        counter(name).increment();
+    }
+
+    /**
+     * Records a value in the histogram with the given name, creating it on first use.
+     *
+     * @param name The histogram name.
+     * @param bounds The bucket bounds of the histogram, used when it is created.
+     * @param value The value.
+     */
+    void record(String name, double[] bounds, double value) {
+        CastleHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, n -> new CastleHistogram(bounds));
+        }
+        histogram.record(value);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge previously registered under the same name.
+     *
+     * @param name The gauge name.
+     * @param supplier The supplier of the current gauge value.
+     */
+    void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Returns the current value of every gauge, sorted by name.
+     *
+     * @return The gauge values.
+     */
+    Map<String, Long> gauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    /**
+     * Returns the current value of every counter, sorted by name.
+     *
+     * @return The counter values.
+     */
+    Map<String, Long> counters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    /**
+     * Returns a snapshot of every histogram, sorted by name.
+     *
+     * @return The histogram snapshots.
+     */
+    Map<String, CastleHistogram.Snapshot> histograms() {
+        Map<String, CastleHistogram.Snapshot> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> values.put(name, histogram.snapshot()));
+        return values;
+    }
+}
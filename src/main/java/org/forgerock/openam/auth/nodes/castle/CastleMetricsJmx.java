@@ -0,0 +1,203 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the {@link CastleMetrics} in the platform MBean server, next to the AM monitoring MBeans, so that they
+ * can be collected with the JMX monitoring AM already exposes.
+ * <p>
+ * Every counter and gauge is a numeric attribute. Every histogram is published as its count, sum, mean, maximum and
+ * estimated 50th, 90th, 99th and 99.9th percentiles. The {@code prometheus} operation returns every metric in the
+ * Prometheus text format, histograms with their cumulative buckets.
+ * </p>
+ */
+final class CastleMetricsJmx implements DynamicMBean {
+
+    static final String OBJECT_NAME = "org.forgerock.openam.auth.nodes.castle:type=CastleMetrics";
+
+    private static final Logger logger = LoggerFactory.getLogger("amAuth");
+    private static final String PROMETHEUS = "prometheus";
+
+    private final CastleMetrics metrics;
+
+    private CastleMetricsJmx(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing any previous registration.
+     *
+     * @param metrics The Castle metrics.
+     */
+    static void register(CastleMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new CastleMetricsJmx(metrics), name);
+        } catch (JMException e) {
+            logger.warn("Unable to publish the Castle metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to remove the Castle metrics from JMX", e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Castle metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (PROMETHEUS.equals(actionName)) {
+            return prometheus();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        values().forEach((name, value) -> attributes.add(new MBeanAttributeInfo(name, value.getClass().getName(),
+                name, true, false, false)));
+        MBeanOperationInfo[] operations = {new MBeanOperationInfo(PROMETHEUS,
+                "Every Castle metric in the Prometheus text format", null, String.class.getName(),
+                MBeanOperationInfo.INFO)};
+        return new MBeanInfo(getClass().getName(), "Castle Authentication Nodes metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+
+    /* Flattens every metric into numeric attributes. */
+    private Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.putAll(metrics.counters());
+        values.putAll(metrics.gauges());
+        metrics.histograms().forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.count());
+            values.put(name + ".sum", histogram.sum());
+            values.put(name + ".mean", histogram.mean());
+            values.put(name + ".max", histogram.max());
+            values.put(name + ".p50", histogram.percentile(50));
+            values.put(name + ".p90", histogram.percentile(90));
+            values.put(name + ".p99", histogram.percentile(99));
+            values.put(name + ".p999", histogram.percentile(99.9));
+        });
+        return values;
+    }
+
+    /* Renders every metric in the Prometheus text format. */
+    private String prometheus() {
+        StringBuilder text = new StringBuilder(4096);
+        metrics.counters().forEach((name, value) -> sample(text, name, "_total", null, value));
+        metrics.gauges().forEach((name, value) -> sample(text, name, "", null, value));
+        metrics.histograms().forEach((name, histogram) -> {
+            double[] bounds = histogram.bounds();
+            long[] cumulative = histogram.cumulativeCounts();
+            for (int i = 0; i < cumulative.length; i++) {
+                String le = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+                sample(text, name, "_bucket", "le=\"" + le + "\"", cumulative[i]);
+            }
+            sample(text, name, "_sum", null, histogram.sum());
+            sample(text, name, "_count", null, histogram.count());
+        });
+        return text.toString();
+    }
+
+    /* Appends a sample, turning castle.a.b{tag=value} into castle_a_b{tag="value"}. */
+    private static void sample(StringBuilder text, String name, String suffix, String extraLabel, Number value) {
+        int braces = name.indexOf('{');
+        String metric = (braces < 0 ? name : name.substring(0, braces)).replace('.', '_');
+        List<String> labels = new ArrayList<>();
+        if (braces >= 0) {
+            for (String label : name.substring(braces + 1, name.length() - 1).split(",")) {
+                int equals = label.indexOf('=');
+                labels.add(label.substring(0, equals) + "=\"" + label.substring(equals + 1).replace("\"", "\\\"")
+                        + "\"");
+            }
+        }
+        if (extraLabel != null) {
+            labels.add(extraLabel);
+        }
+        text.append(metric).append(suffix);
+        if (!labels.isEmpty()) {
+            text.append('{').append(String.join(",", labels)).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+}
@@ -33,6 +33,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import javax.inject.Inject;
+
 /**
  * Definition of an
  * <a href="https://backstage.forgerock.com/docs/am/6/apidocs/org/forgerock/openam/auth/node/api/AbstractNodeAmPlugin.html">AbstractNodeAmPlugin</a>.
@@ -67,15 +69,92 @@ import java.util.Map;
  */
 public class CastleNodePlugin extends AbstractNodeAmPlugin {
 
-    static private String currentVersion = "1.1.0";
+    static private String currentVersion = "1.2.0";
     private final Class serviceClass = CastleService.class;
+    private CastleServiceSnapshots serviceSnapshots;
+    private CastleClientRegistry clientRegistry;
+    private CastleLogPipeline logPipeline;
+    private CastleCallExecutors callExecutors;
+    private CastlePrefetchCache prefetchCache;
+    private CastleMetrics metrics;
+    private CastleApprovalQueue approvalQueue;
 
     private final List<Class<? extends Node>> nodeList = ImmutableList.of(
             CastleProfilerNode.class, CastleLogNode.class, CastleRiskNode.class,
             CastleFilterNode.class, CastleActionNode.class, CastleScoreNode.class,
-            CastleSignalNode.class, CastleApproveDeviceNode.class
+            CastleSignalNode.class, CastleDecisionNode.class, CastleApproveDeviceNode.class
     );
 
+    /**
+     * Sets the registry of shared Castle clients, so that they can be released on shutdown.
+     *
+     * @param clientRegistry The registry of shared Castle clients.
+     */
+    @Inject
+    public void setClientRegistry(CastleClientRegistry clientRegistry) {
+        this.clientRegistry = clientRegistry;
+    }
+
+    /**
+     * Sets the Castle Service snapshots, so that they follow configuration changes once AM has started.
+     *
+     * @param serviceSnapshots The Castle Service snapshots of the realms.
+     */
+    @Inject
+    public void setServiceSnapshots(CastleServiceSnapshots serviceSnapshots) {
+        this.serviceSnapshots = serviceSnapshots;
+    }
+
+    /**
+     * Sets the asynchronous log pipeline, so that queued events are flushed on shutdown.
+     *
+     * @param logPipeline The asynchronous log pipeline.
+     */
+    @Inject
+    public void setLogPipeline(CastleLogPipeline logPipeline) {
+        this.logPipeline = logPipeline;
+    }
+
+    /**
+     * Sets the executors of the Castle calls, so that their threads are stopped on shutdown.
+     *
+     * @param callExecutors The executors of the Castle calls.
+     */
+    @Inject
+    public void setCallExecutors(CastleCallExecutors callExecutors) {
+        this.callExecutors = callExecutors;
+    }
+
+    /**
+     * Sets the cache of prefetched Castle calls, so that pending calls are cancelled on shutdown.
+     *
+     * @param prefetchCache The cache of prefetched Castle calls.
+     */
+    @Inject
+    public void setPrefetchCache(CastlePrefetchCache prefetchCache) {
+        this.prefetchCache = prefetchCache;
+    }
+
+    /**
+     * Sets the queue of asynchronous device approvals, so that pending approvals are completed on shutdown.
+     *
+     * @param approvalQueue The queue of asynchronous device approvals.
+     */
+    @Inject
+    public void setApprovalQueue(CastleApprovalQueue approvalQueue) {
+        this.approvalQueue = approvalQueue;
+    }
+
+    /**
+     * Sets the Castle metrics, so that they are published over JMX while the plugin runs.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public void setMetrics(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
      * registered at the appropriate times in plugin lifecycle.
@@ -101,16 +180,51 @@ public class CastleNodePlugin extends AbstractNodeAmPlugin {
 
     /**
      * Handle plugin startup. This method will be called every time AM starts, after {@link #onInstall()},
-     * {@link #onAmUpgrade(String, String)} and {@link #upgrade(String)} have been called (if relevant).
+     * {@link #onAmUpgrade(String, String)} and {@link #upgrade(String)} have been called (if relevant). Publishes the
+     * Castle metrics over JMX.
      * <p>
      * No need to implement this unless your AuthNode has specific requirements on startup.
      */
     @Override
     public void onStartup(StartupType startupType) throws PluginException {
         pluginTools.startService(serviceClass);
+        if (metrics != null) {
+            CastleMetricsJmx.register(metrics);
+        }
+        if (serviceSnapshots != null) {
+            serviceSnapshots.startListening();
+        }
         super.onStartup(startupType);
     }
 
+    /**
+     * Handle plugin shutdown. Flushes queued log events and releases the shared Castle clients so that their HTTP
+     * connections are not kept alive after AM stops.
+     */
+    @Override
+    public void onShutdown() {
+        CastleMetricsJmx.unregister();
+        if (logPipeline != null) {
+            logPipeline.shutdown();
+        }
+        if (approvalQueue != null) {
+            approvalQueue.shutdown();
+        }
+        if (prefetchCache != null) {
+            prefetchCache.shutdown();
+        }
+        if (callExecutors != null) {
+            callExecutors.shutdown();
+        }
+        if (clientRegistry != null) {
+            clientRegistry.shutdown();
+        }
+        if (serviceSnapshots != null) {
+            serviceSnapshots.shutdown();
+        }
+        super.onShutdown();
+    }
+
     /**
      * This method will be called when the version returned by {@link #getPluginVersion()} is higher than the
      * version already installed. This method will be called before the {@link #onStartup()} method.
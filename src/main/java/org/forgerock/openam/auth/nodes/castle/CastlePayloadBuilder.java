@@ -0,0 +1,188 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.SharedStateConstants;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdUtils;
+
+import io.castle.client.Castle;
+
+/**
+ * Builds the request payloads sent to the Castle API.
+ */
+class CastlePayloadBuilder {
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final Realm realm;
+    private final CastleService castleService;
+    private final CastleHeaderFilter headerFilter;
+    private final CastleIdentityCache identityCache;
+    private final CoreWrapper coreWrapper;
+    private final String mailAttribute;
+    private final boolean reuseUserContext;
+
+    /**
+     * Creates a payload builder.
+     *
+     * @param realm The realm of the calling node.
+     * @param castleService The realm's Castle Service configuration.
+     * @param headerFilter The realm's header filter.
+     * @param identityCache The identity cache.
+     * @param coreWrapper The core wrapper, used to resolve user aliases.
+     * @param mailAttribute The attribute the email is read from.
+     * @param reuseUserContext Whether the user context is stored in and reused from shared state.
+     */
+    CastlePayloadBuilder(Realm realm, CastleService castleService, CastleHeaderFilter headerFilter,
+            CastleIdentityCache identityCache, CoreWrapper coreWrapper, String mailAttribute,
+            boolean reuseUserContext) {
+        this.realm = realm;
+        this.castleService = castleService;
+        this.headerFilter = headerFilter;
+        this.identityCache = identityCache;
+        this.coreWrapper = coreWrapper;
+        this.mailAttribute = mailAttribute;
+        this.reuseUserContext = reuseUserContext;
+    }
+
+    /**
+     * Builds a request payload for Castle API.
+     *
+     * @param context The tree context.
+     * @param event The Castle event.
+     * @param status The Castle status.
+     * @return The payload.
+     */
+    ImmutableMap<Object, Object> build(TreeContext context, String event, String status) {
+        logger.debug("Building Castle payload");
+        Object user = resolveUser(context);
+        String request_token = context.sharedState.get(CastleHelper.REQUEST_TOKEN).asString();
+
+        return ImmutableMap.builder()
+                .put(Castle.KEY_EVENT, event)
+                .put(Castle.KEY_STATUS, status)
+                .put(Castle.KEY_CONTEXT,
+                        ImmutableMap.builder()
+                                .put(Castle.KEY_IP, context.request.clientIp)
+                                .put(Castle.KEY_HEADERS, headerFilter.filter(context.request.servletRequest))
+                                .build())
+                .put(Castle.KEY_USER, user)
+                .put(Castle.KEY_REQUEST_TOKEN, request_token)
+                .build();
+    }
+
+    /**
+     * Returns the user part of the payload.
+     * <p>
+     * It is stored in shared state under {@link CastleHelper#USER_CONTEXT}, so that the Castle nodes later in the
+     * tree reuse it instead of looking up the identity again. The user is resolved again when the username changes
+     * or when no identity existed yet, for example before a registration creates it. The client IP and headers are
+     * not stored: they are small to extract, would inflate the authentication session on every round-trip, and must
+     * come from the current request rather than from the request of an earlier node.
+     * </p>
+     *
+     * @param context The tree context.
+     * @return The user.
+     */
+    Object resolveUser(TreeContext context) {
+        String username = context.sharedState.get(SharedStateConstants.USERNAME).asString();
+        JsonValue stored = reuseUserContext
+                ? context.sharedState.get(CastleHelper.USER_CONTEXT)
+                : JsonValue.json(null);
+        if (stored.isNotNull() && Objects.equals(username, stored.get(SharedStateConstants.USERNAME).asString())
+                && stored.get(Castle.KEY_USER).isDefined("id")) {
+            logger.debug("Reusing Castle user context from shared state");
+            return stored.get(Castle.KEY_USER).getObject();
+        }
+
+        Map<String, Object> user = buildUser(context, username);
+        if (reuseUserContext) {
+            Map<String, Object> userContext = new LinkedHashMap<>(4);
+            userContext.put(SharedStateConstants.USERNAME, username);
+            userContext.put(Castle.KEY_USER, user);
+            context.sharedState.put(CastleHelper.USER_CONTEXT, userContext);
+        }
+        return user;
+    }
+
+    /* Builds the user part of the payload, looking up the identity when it exists. */
+    private Map<String, Object> buildUser(TreeContext context, String username) {
+        Map<String, Object> user = new LinkedHashMap<>(4);
+        user.put(SharedStateConstants.USERNAME, username);
+
+        String identityRealm = context.sharedState.get(REALM).asString();
+        CastleIdentityCache.Identity userIdentity = CastleIdentityCache.Identity.NOT_FOUND;
+        try {
+            userIdentity = identityCache.get(realm, castleService, identityRealm, username, mailAttribute,
+                    () -> loadIdentity(username, identityRealm));
+        } catch (IdRepoException | SSOException e) {
+            logger.error("Unable to add user email to the request", e);
+        }
+
+        if (userIdentity.exists()) {
+            if (userIdentity.email() != null) {
+                user.put(Castle.KEY_EMAIL, userIdentity.email());
+            }
+            // context.universalId is not present in the registration flow, but once an identity is created
+            // we can fetch the universalId from it
+            if (userIdentity.universalId() != null) {
+                user.put("id", userIdentity.universalId());
+            }
+        } else {
+            context.universalId.ifPresent(s -> user.put("id", s));
+            // TODO: should this be more configurable?
+            JsonValue emailFromParams =
+                    context.sharedState.get(new JsonPointer("/objectAttributes/" + mailAttribute));
+
+            if (emailFromParams != null && emailFromParams.isString()) {
+                user.put(Castle.KEY_EMAIL, emailFromParams.asString());
+            }
+        }
+        return user;
+    }
+
+    /* Resolves the email and universal id of a user from the identity repository. */
+    private CastleIdentityCache.Identity loadIdentity(String username, String identityRealm)
+            throws IdRepoException, SSOException {
+        AMIdentity userIdentity = IdUtils.getIdentity(username, identityRealm,
+                coreWrapper.getUserAliasList(identityRealm));
+        if (userIdentity == null) {
+            return CastleIdentityCache.Identity.NOT_FOUND;
+        }
+        Set<String> emails = userIdentity.getAttribute(mailAttribute);
+        String email = emails == null || emails.isEmpty() ? null : emails.iterator().next();
+        return new CastleIdentityCache.Identity(true, email, userIdentity.getUniversalId());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Holds the Castle calls started ahead of time by the {@link CastleProfilerNode}, until the Castle node that needs
+ * the response picks them up.
+ * <p>
+ * A prefetched call is identified by a random id stored in the shared state of the authentication session, under
+ * {@link CastleHelper#PREFETCH_ID}. It is only used when the endpoint and the payload of the later node are the same
+ * as the prefetched ones; otherwise it is cancelled and the node calls Castle itself. Calls that are never picked up
+ * expire and are cancelled.
+ * </p>
+ * <p>
+ * Every entry lives for the same time, so the entries are kept in insertion order, which is also their expiry order:
+ * each put drops the expired entries from the head of the map, and then the oldest ones while the cache is full.
+ * </p>
+ */
+@Singleton
+public class CastlePrefetchCache {
+
+    static final String HITS = "castle.prefetch.hits";
+    static final String MISSES = "castle.prefetch.misses";
+    static final String EXPIRED = "castle.prefetch.expired";
+
+    private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final int MAX_SIZE = 10000;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final CastleMetrics metrics;
+
+    /**
+     * Creates the cache.
+     *
+     * @param metrics The Castle metrics.
+     */
+    @Inject
+    public CastlePrefetchCache(CastleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Stores a prefetched call and records its id in shared state, replacing any call the session prefetched before.
+     *
+     * @param sharedState The shared state of the authentication session.
+     * @param endpoint The endpoint the call was sent to.
+     * @param payload The payload of the call.
+     * @param call The pending call.
+     */
+    void put(JsonValue sharedState, Endpoint endpoint, ImmutableMap<Object, Object> payload,
+            CastlePrefetchedCall call) {
+        long now = System.nanoTime();
+        String previous = sharedState.get(CastleHelper.PREFETCH_ID).asString();
+        String id = UUID.randomUUID().toString();
+        List<Entry> dropped = new ArrayList<>();
+        synchronized (entries) {
+            if (previous != null) {
+                add(dropped, entries.remove(previous));
+            }
+            evictEntries(now, dropped);
+            entries.put(id, new Entry(endpoint, payload, call, now));
+        }
+        sharedState.put(CastleHelper.PREFETCH_ID, id);
+        dropped.forEach(CastlePrefetchCache::cancel);
+    }
+
+    /**
+     * Removes the call prefetched by the session from the cache, and returns it when it matches the given endpoint
+     * and payload.
+     *
+     * @param context The tree context.
+     * @param endpoint The endpoint the calling node would send its call to.
+     * @param payload The payload the calling node would send.
+     * @return The pending call, or {@code null} when there is no matching prefetched call.
+     */
+    CastlePrefetchedCall take(TreeContext context, Endpoint endpoint, ImmutableMap<Object, Object> payload) {
+        String id = context.sharedState.get(CastleHelper.PREFETCH_ID).asString();
+        if (id == null) {
+            return null;
+        }
+        context.sharedState.remove(CastleHelper.PREFETCH_ID);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.remove(id);
+        }
+        if (entry == null || System.nanoTime() - entry.createdAt >= TTL_NANOS || entry.endpoint != endpoint
+                || !entry.payload.equals(payload)) {
+            metrics.increment(MISSES);
+            cancel(entry);
+            return null;
+        }
+        metrics.increment(HITS);
+        return entry.call;
+    }
+
+    /**
+     * Cancels every pending call. Called when the plugin shuts down.
+     */
+    void shutdown() {
+        List<Entry> dropped;
+        synchronized (entries) {
+            dropped = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        dropped.forEach(CastlePrefetchCache::cancel);
+    }
+
+    /* Drops the expired entries, then the oldest ones until there is room for a new entry. Called under the lock. */
+    private void evictEntries(long now, List<Entry> dropped) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.createdAt < TTL_NANOS && entries.size() < MAX_SIZE) {
+                break;
+            }
+            iterator.remove();
+            dropped.add(entry);
+            metrics.increment(EXPIRED);
+        }
+    }
+
+    private static void add(List<Entry> dropped, Entry entry) {
+        if (entry != null) {
+            dropped.add(entry);
+        }
+    }
+
+    private static void cancel(Entry entry) {
+        if (entry != null) {
+            entry.call.cancel();
+        }
+    }
+
+    /**
+     * The Castle endpoints a call can be prefetched for. Only the filter endpoint is, with the {@code $attempted}
+     * status: a risk or a {@code $succeeded} filter call would report a login to Castle before the credentials are
+     * checked.
+     */
+    public enum Endpoint {
+        /** No prefetch. */
+        NONE,
+        /** The filter endpoint, used by the {@link CastleFilterNode}. */
+        FILTER
+    }
+
+    private static final class Entry {
+        private final Endpoint endpoint;
+        private final ImmutableMap<Object, Object> payload;
+        private final CastlePrefetchedCall call;
+        private final long createdAt;
+
+        private Entry(Endpoint endpoint, ImmutableMap<Object, Object> payload, CastlePrefetchedCall call,
+                long createdAt) {
+            this.endpoint = endpoint;
+            this.payload = payload;
+            this.call = call;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+
+import io.castle.client.model.CastleResponse;
+import io.castle.client.model.CastleRuntimeException;
+
+/**
+ * A Castle call started ahead of time by the {@link CastleProfilerNode}.
+ * <p>
+ * The call holds its own circuit breaker probe and concurrency limiter permit, and records exactly one sample: its
+ * success or outage when it completes, a failure when the node that picks it up times out waiting for it, or none
+ * when it is cancelled because its response is not used. The node that picks it up therefore neither acquires nor
+ * samples the breaker and the limiter itself.
+ * </p>
+ */
+final class CastlePrefetchedCall {
+
+    private final CompletableFuture<CastleResponse> result = new CompletableFuture<>();
+    private final AtomicBoolean recorded = new AtomicBoolean();
+    private final CastleCircuitBreaker circuitBreaker;
+    private final CastleConcurrencyLimiter.Permit permit;
+
+    private CastlePrefetchedCall(CastleCircuitBreaker circuitBreaker, CastleConcurrencyLimiter.Permit permit) {
+        this.circuitBreaker = circuitBreaker;
+        this.permit = permit;
+    }
+
+    /**
+     * Submits a call that holds an acquired circuit breaker probe and concurrency limiter permit.
+     *
+     * @param callExecutor The executor of the realm's Castle calls.
+     * @param circuitBreaker The realm's circuit breaker, already acquired.
+     * @param permit The concurrency limiter permit of the call.
+     * @param call The call.
+     * @return The pending call.
+     * @throws java.util.concurrent.RejectedExecutionException If the executor is saturated. The probe and the permit
+     *                                                         are then still held by the caller.
+     */
+    static CastlePrefetchedCall start(CastleCallExecutor callExecutor, CastleCircuitBreaker circuitBreaker,
+            CastleConcurrencyLimiter.Permit permit, CastleCallExecutor.CastleCall<CastleResponse> call) {
+        CastlePrefetchedCall prefetched = new CastlePrefetchedCall(circuitBreaker, permit);
+        Future<Void> task = callExecutor.submit(() -> {
+            prefetched.run(call);
+            return null;
+        });
+        prefetched.result.whenComplete((response, e) -> {
+            prefetched.release();
+            if (prefetched.result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return prefetched;
+    }
+
+    /**
+     * Waits for the response. Timing out records a failure and cancels the call.
+     *
+     * @param callExecutor The executor of the realm's Castle calls.
+     * @param timeoutMillis The deadline in milliseconds. Ignored when zero or less.
+     * @return The response.
+     * @throws NodeProcessException If the call failed with a node error.
+     * @throws TimeoutException If the deadline is exceeded.
+     */
+    CastleResponse await(CastleCallExecutor callExecutor, long timeoutMillis)
+            throws NodeProcessException, TimeoutException {
+        try {
+            // waits on a dependent stage, so that the timeout is recorded before the call is cancelled
+            return callExecutor.await(result.thenApply(Function.identity()), timeoutMillis);
+        } catch (TimeoutException e) {
+            recordFailure();
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels the call, releasing its probe and permit without a sample unless it already completed.
+     */
+    void cancel() {
+        result.cancel(true);
+    }
+
+    private void run(CastleCallExecutor.CastleCall<CastleResponse> call) {
+        long start = System.nanoTime();
+        try {
+            CastleResponse response = call.call();
+            long elapsed = System.nanoTime() - start;
+            if (recorded.compareAndSet(false, true)) {
+                circuitBreaker.onSuccess(elapsed);
+                permit.onSuccess(elapsed);
+            }
+            result.complete(response);
+        } catch (CastleRuntimeException e) {
+            if (CastleCircuitBreaker.isOutage(e)) {
+                recordFailure();
+            }
+            result.completeExceptionally(e);
+        } catch (RuntimeException | NodeProcessException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void recordFailure() {
+        if (recorded.compareAndSet(false, true)) {
+            circuitBreaker.onFailure();
+            permit.onDropped();
+        }
+    }
+
+    /* Frees the probe and the permit without a sample, unless the call was already recorded. */
+    private void release() {
+        if (recorded.compareAndSet(false, true)) {
+            circuitBreaker.onCancelled();
+            permit.release();
+        }
+    }
+}
@@ -21,22 +21,27 @@ import static org.forgerock.openam.auth.node.api.Action.send;
 
 import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 import javax.security.auth.callback.TextOutputCallback;
 
+import com.google.common.collect.ImmutableMap;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.sm.SMSException;
+import io.castle.client.Castle;
+import io.castle.client.model.CastleSdkConfigurationException;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.OutputState;
+import org.forgerock.openam.auth.node.api.SharedStateConstants;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,14 +53,49 @@ import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
         configClass = CastleProfilerNode.Config.class, tags = {"risk"})
 public class CastleProfilerNode extends SingleOutcomeNode {
 
+    static final String SCRIPTS_SENT = "castle.profiler.scripts_sent";
+    static final String TOKENS_RECEIVED = "castle.profiler.tokens_received";
+    static final String PREFETCHES = "castle.prefetch.started";
+
     private final Logger logger = LoggerFactory.getLogger("amAuth");
     private final Config config;
     private final CastleService castleService;
+    private final CastlePrefetchCache prefetchCache;
+    private final CastleMetrics metrics;
+    private final String profilerScript;
+    private final Castle castle;
+    private final CastleCircuitBreaker circuitBreaker;
+    private final CastleConcurrencyLimiter concurrencyLimiter;
+    private final CastleCallExecutor callExecutor;
+    private final CastlePayloadBuilder payloadBuilder;
 
     /**
      * Configuration for the node.
      */
     public interface Config {
+        /**
+         * Prefetch
+         */
+        @Attribute(order = 100)
+        default CastlePrefetchCache.Endpoint prefetch() {
+            return CastlePrefetchCache.Endpoint.NONE;
+        }
+
+        /**
+         * Prefetch Event Type
+         */
+        @Attribute(order = 110)
+        default CastleRequestNode.Event prefetchEvent() {
+            return CastleRequestNode.Event.LOGIN;
+        }
+
+        /**
+         * Mail Attribute
+         */
+        @Attribute(order = 130)
+        default String mailAttribute() {
+            return "mail";
+        }
     }
 
 
@@ -64,17 +104,44 @@ public class CastleProfilerNode extends SingleOutcomeNode {
      * from the plugin.
      *
      * @param config The service config.
+     * @param profilerScripts The rendered profiler scripts of the realms.
+     * @param concurrencyLimiters The Castle concurrency limiters of the realms.
      * @throws NodeProcessException If the configuration was not valid.
      */
     @Inject
-    public CastleProfilerNode(@Assisted Config config, AnnotatedServiceRegistry serviceRegistry, @Assisted Realm realm)
+    public CastleProfilerNode(@Assisted Config config, CastleServiceSnapshots serviceSnapshots, @Assisted Realm realm,
+            CoreWrapper coreWrapper, CastleClientRegistry clientRegistry, CastleCircuitBreakers circuitBreakers,
+            CastleIdentityCache identityCache, CastleCallExecutors callExecutors, CastlePrefetchCache prefetchCache,
+            CastleMetrics metrics, CastleProfilerScripts profilerScripts, CastleConcurrencyLimiters concurrencyLimiters)
             throws NodeProcessException {
         this.config = config;
+        this.metrics = metrics;
+        this.prefetchCache = prefetchCache;
         try {
-            this.castleService = serviceRegistry.getRealmSingleton(CastleService.class, realm).get();
+            this.castleService = serviceSnapshots.get(realm).service();
         } catch (SSOException | SMSException | NoSuchElementException e) {
             throw new NodeProcessException("Cannot initialize Castle Node because the Castle Service is not configured");
         }
+        this.profilerScript = profilerScripts.get(realm, castleService);
+        if (config.prefetch() == CastlePrefetchCache.Endpoint.NONE) {
+            this.castle = null;
+            this.circuitBreaker = null;
+            this.concurrencyLimiter = null;
+            this.callExecutor = null;
+            this.payloadBuilder = null;
+            return;
+        }
+        try {
+            this.castle = clientRegistry.getClient(realm, castleService);
+            this.circuitBreaker = circuitBreakers.get(realm, castleService);
+            this.concurrencyLimiter = concurrencyLimiters.get(realm, castleService);
+            this.callExecutor = callExecutors.get(realm, castleService);
+            this.payloadBuilder = new CastlePayloadBuilder(realm, castleService,
+                    clientRegistry.getHeaderFilter(realm, castleService), identityCache, coreWrapper,
+                    config.mailAttribute(), true);
+        } catch (CastleSdkConfigurationException e) {
+            throw new NodeProcessException("Cannot initialize the castle SDK due to: " + e.getMessage());
+        }
     }
 
     @Override
@@ -84,25 +151,60 @@ public class CastleProfilerNode extends SingleOutcomeNode {
         if (context.getCallback(TextOutputCallback.class).isPresent() && context.getCallback(HiddenValueCallback.class)
                                                                                 .isPresent()) {
             logger.debug("Request Token present");
-            return goToNext().replaceSharedState(
-                    sharedState.put(CastleHelper.APP_ID, castleService.appId())
-                               .put(CastleHelper.REQUEST_TOKEN, context.getCallback(
-                                       HiddenValueCallback.class).get().getValue())).build();
+            metrics.increment(TOKENS_RECEIVED);
+            sharedState.put(CastleHelper.APP_ID, castleService.appId())
+                       .put(CastleHelper.REQUEST_TOKEN, context.getCallback(HiddenValueCallback.class).get().getValue());
+            if (config.prefetch() != CastlePrefetchCache.Endpoint.NONE) {
+                prefetch(context);
+            }
+            return goToNext().replaceSharedState(sharedState).build();
         }
 
-        String scriptSrc = String.format("%1$s?%2$s", castleService.uri(), castleService.appId());
-
-
         logger.debug("Sending client side script");
-        return send(Arrays.asList(new ScriptTextOutputCallback(String.format(CastleHelper.SCRIPT, scriptSrc)),
+        metrics.increment(SCRIPTS_SENT);
+        return send(Arrays.asList(new ScriptTextOutputCallback(profilerScript),
                                   new HiddenValueCallback("request_token"))).replaceSharedState(sharedState)
                                                                             .build();
 
     }
 
+    /* Starts an $attempted Castle filter call in the background, for the Castle Filter node later in the tree. */
+    private void prefetch(TreeContext context) {
+        if (callExecutor.isSynchronous()) {
+            logger.debug("Castle prefetch requires an asynchronous Call Mode. Skipping it.");
+            return;
+        }
+        if (!context.sharedState.isDefined(SharedStateConstants.USERNAME)) {
+            logger.debug("No username in shared state. Skipping the Castle prefetch.");
+            return;
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            logger.debug("Castle circuit breaker is open. Skipping the Castle prefetch.");
+            return;
+        }
+        CastleConcurrencyLimiter.Permit permit = concurrencyLimiter.tryAcquire();
+        if (permit == null) {
+            circuitBreaker.onCancelled();
+            logger.debug("Too many Castle calls in flight. Skipping the Castle prefetch.");
+            return;
+        }
+        ImmutableMap<Object, Object> payload = payloadBuilder.build(context, config.prefetchEvent().toString(),
+                CastleRequestNode.Status.ATTEMPTED.toString());
+        try {
+            prefetchCache.put(context.sharedState, config.prefetch(), payload, CastlePrefetchedCall.start(callExecutor,
+                    circuitBreaker, permit, () -> castle.client().filter(payload)));
+            metrics.increment(PREFETCHES);
+        } catch (RejectedExecutionException e) {
+            circuitBreaker.onCancelled();
+            permit.release();
+            logger.debug("Too many concurrent Castle API calls. Skipping the Castle prefetch.");
+        }
+    }
+
     @Override
     public OutputState[] getOutputs() {
-        return new OutputState[]{new OutputState(CastleHelper.APP_ID), new OutputState(CastleHelper.REQUEST_TOKEN)};
+        return new OutputState[]{new OutputState(CastleHelper.APP_ID), new OutputState(CastleHelper.REQUEST_TOKEN),
+                new OutputState(CastleHelper.PREFETCH_ID), new OutputState(CastleHelper.USER_CONTEXT)};
     }
 
 
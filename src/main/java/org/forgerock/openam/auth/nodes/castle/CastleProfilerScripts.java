@@ -0,0 +1,135 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang.StringUtils;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the profiler script of each realm, rendered once from the realm's Castle Service rather than on every login
+ * page, and re-rendered when its App ID, Castle JS link or Profiler Script URL change.
+ * <p>
+ * Without a Profiler Script URL the script loads the Castle JS and submits its request token. With one, it is only a
+ * short loader for the static {@code castle-profiler.js} shipped with this plugin, which does both, versioned by the
+ * hash of that file so that browsers can cache it for as long as it does not change. The loader hands the login
+ * helpers of the page, which only inline scripts can see, to the static script.
+ * </p>
+ */
+@Singleton
+public class CastleProfilerScripts {
+
+    static final String STATIC_SCRIPT = "org/forgerock/openam/auth/nodes/castle/castle-profiler.js";
+    private static final String LOADER = "var script = document.createElement('script');\n"
+            + "script.src = '%1$s';\n"
+            + "script.setAttribute('data-castle-src', '%2$s');\n"
+            + "if (typeof loginHelpers !== 'undefined') script.castleLoginHelpers = loginHelpers;\n"
+            + "document.getElementsByTagName('head')[0].appendChild(script);\n";
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final ConcurrentMap<String, RealmScript> scripts = new ConcurrentHashMap<>();
+    private volatile String staticScriptVersion;
+
+    /**
+     * Returns the profiler script of the realm.
+     *
+     * @param realm The realm of the profiler node.
+     * @param castleService The realm's Castle Service configuration.
+     * @return The rendered script.
+     */
+    String get(Realm realm, CastleService castleService) {
+        List<Object> settings = Arrays.asList(castleService.appId(), castleService.uri(),
+                castleService.profilerScriptUrl());
+        RealmScript current = scripts.get(realm.asPath());
+        if (current != null && current.settings.equals(settings)) {
+            return current.script;
+        }
+        synchronized (scripts) {
+            current = scripts.get(realm.asPath());
+            if (current != null && current.settings.equals(settings)) {
+                return current.script;
+            }
+            String script = render(castleService);
+            logger.debug("Rendered the Castle profiler script of realm {}", realm.asPath());
+            scripts.put(realm.asPath(), new RealmScript(settings, script));
+            return script;
+        }
+    }
+
+    private String render(CastleService castleService) {
+        String castleSrc = String.format("%1$s?%2$s", castleService.uri(), castleService.appId());
+        String staticScriptUrl = castleService.profilerScriptUrl();
+        return StringUtils.isBlank(staticScriptUrl)
+                ? String.format(CastleHelper.SCRIPT, castleSrc, CastleHelper.SUBMIT_HOOK)
+                : String.format(LOADER, staticScriptUrl.trim() + "?v=" + staticScriptVersion(), castleSrc);
+    }
+
+    /* The first 16 hex digits of the SHA-256 of the static script, which change whenever the script does. */
+    private String staticScriptVersion() {
+        if (staticScriptVersion == null) {
+            try (InputStream in = CastleProfilerScripts.class.getClassLoader().getResourceAsStream(STATIC_SCRIPT)) {
+                if (in == null) {
+                    throw new IllegalStateException("Missing Castle static profiler script " + STATIC_SCRIPT);
+                }
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                    content.write(buffer, 0, length);
+                }
+                StringBuilder version = new StringBuilder(16);
+                for (byte b : Arrays.copyOf(sha256(content.toByteArray()), 8)) {
+                    version.append(String.format("%02x", b));
+                }
+                staticScriptVersion = version.toString();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read Castle static profiler script " + STATIC_SCRIPT, e);
+            }
+        }
+        return staticScriptVersion;
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class RealmScript {
+        private final List<Object> settings;
+        private final String script;
+
+        private RealmScript(List<Object> settings, String script) {
+            this.settings = settings;
+            this.script = script;
+        }
+    }
+}
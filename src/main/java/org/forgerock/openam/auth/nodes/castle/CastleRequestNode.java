@@ -18,40 +18,44 @@
 package org.forgerock.openam.auth.nodes.castle;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.gson.Gson;
 import com.iplanet.sso.SSOException;
-import com.sun.identity.idm.AMIdentity;
-import com.sun.identity.idm.IdRepoException;
-import com.sun.identity.idm.IdUtils;
+import com.sun.identity.sm.RequiredValueValidator;
 import com.sun.identity.sm.SMSException;
 import io.castle.client.Castle;
-import io.castle.client.internal.backend.CastleBackendProvider;
 import io.castle.client.model.*;
-import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.*;
+import org.forgerock.openam.auth.nodes.validators.DecimalBetweenZeroAndOneValidator;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.nodes.castle.CastleHelper.CASTLE_RESPONSE;
 
 public abstract class CastleRequestNode extends SingleOutcomeNode {
 
-    protected static String FALLBACK_RESPONSE = "{\"risk\":%1$s,\"signals\":{},\"policy\":{\"action\":\"%2$s\",\"id\":\"FALLBACK\",\"revision_id\":\"FALLBACK\",\"name\":\"FALLBACK\"},\"device\":{}}";
+    protected static final String FALLBACK = "FALLBACK";
 
     protected final Logger logger = LoggerFactory.getLogger("amAuth");
-    protected final AnnotatedServiceRegistry serviceRegistry;
     protected final Config config;
+    protected final CastleService castleService;
     protected final Castle castle;
+    protected final CastleCircuitBreaker circuitBreaker;
+    protected final CastleCallExecutor callExecutor;
+    protected final CastleConcurrencyLimiter concurrencyLimiter;
+    protected final CastleMetrics metrics;
+    protected final CastleEndpointMetrics endpointMetrics;
+    protected final CastlePayloadBuilder payloadBuilder;
     protected final CoreWrapper coreWrapper;
-    protected final Gson gson;
+    protected final Map<AuthenticateAction, JsonValue> fallbackValues;
     protected final Realm realm;
 
     /**
@@ -82,6 +86,30 @@ public abstract class CastleRequestNode extends SingleOutcomeNode {
             return AuthenticateAction.CHALLENGE;
         }
 
+        /**
+         * Fallback Risk for the Allow strategy
+         */
+        @Attribute(order = 610, validators = {RequiredValueValidator.class, DecimalBetweenZeroAndOneValidator.class})
+        default String allowFallbackRisk() {
+            return "0.3";
+        }
+
+        /**
+         * Fallback Risk for the Challenge strategy
+         */
+        @Attribute(order = 620, validators = {RequiredValueValidator.class, DecimalBetweenZeroAndOneValidator.class})
+        default String challengeFallbackRisk() {
+            return "0.7";
+        }
+
+        /**
+         * Fallback Risk for the Deny strategy
+         */
+        @Attribute(order = 630, validators = {RequiredValueValidator.class, DecimalBetweenZeroAndOneValidator.class})
+        default String denyFallbackRisk() {
+            return "0.99";
+        }
+
         /**
          * Mail Attribute
          */
@@ -89,6 +117,30 @@ public abstract class CastleRequestNode extends SingleOutcomeNode {
         default String mailAttribute() {
             return "mail";
         }
+
+        /**
+         * Reuse User Context
+         */
+        @Attribute(order = 940)
+        default boolean reuseUserContext() {
+            return true;
+        }
+
+        /**
+         * Retain Full Response
+         */
+        @Attribute(order = 950)
+        default boolean retainFullResponse() {
+            return false;
+        }
+
+        /**
+         * Compact Response
+         */
+        @Attribute(order = 960)
+        default boolean compactResponse() {
+            return false;
+        }
     }
 
 
@@ -99,29 +151,26 @@ public abstract class CastleRequestNode extends SingleOutcomeNode {
      * @param config The service config.
      * @throws NodeProcessException If the configuration was not valid.
      */
-    public CastleRequestNode(Config config, CoreWrapper coreWrapper, AnnotatedServiceRegistry serviceRegistry, Realm realm)
-            throws NodeProcessException {
+    public CastleRequestNode(Config config, CoreWrapper coreWrapper, CastleServiceSnapshots serviceSnapshots,
+            Realm realm, CastleClientRegistry clientRegistry, CastleCircuitBreakers circuitBreakers,
+            CastleIdentityCache identityCache, CastleCallExecutors callExecutors,
+            CastleConcurrencyLimiters concurrencyLimiters, CastleMetrics metrics) throws NodeProcessException {
         this.config = config;
+        this.metrics = metrics;
+        this.endpointMetrics = CastleEndpointMetrics.forEndpoint(endpoint());
         this.coreWrapper = coreWrapper;
-        this.gson = new Gson();
-        this.serviceRegistry = serviceRegistry;
+        this.fallbackValues = buildFallbackValues(config);
         this.realm = realm;
         try {
-            CastleService castleService =
-                    serviceRegistry.getRealmSingleton(CastleService.class, realm).get();
-
-            castle = Castle.initialize(
-                    Castle.configurationBuilder()
-                            .apiSecret(String.valueOf(castleService.apiSecret()))
-                            .withAllowListHeaders(castleService.allowListedHeaders())
-                            .withDenyListHeaders(castleService.denyListedHeaders())
-                            .withTimeout(castleService.timeout())
-                            .withBackendProvider(CastleBackendProvider.OKHTTP)
-                            .withAuthenticateFailoverStrategy(new AuthenticateFailoverStrategy(config.failOverStrategy()))
-                            .withApiBaseUrl(castleService.baseURL())
-                            .withLogHttpRequests(castleService.logHttpRequests())
-                            .build()
-            );
+            castleService = serviceSnapshots.get(realm).service();
+
+            castle = clientRegistry.getClient(realm, castleService);
+            payloadBuilder = new CastlePayloadBuilder(realm, castleService,
+                    clientRegistry.getHeaderFilter(realm, castleService), identityCache, coreWrapper,
+                    config.mailAttribute(), config.reuseUserContext());
+            circuitBreaker = circuitBreakers.get(realm, castleService);
+            callExecutor = callExecutors.get(realm, castleService);
+            concurrencyLimiter = concurrencyLimiters.get(realm, castleService);
         } catch (CastleSdkConfigurationException | SMSException | SSOException e) {
             throw new NodeProcessException("Cannot initialize the castle SDK due to: " + e.getMessage());
         } catch(NoSuchElementException e) {
@@ -134,14 +183,88 @@ public abstract class CastleRequestNode extends SingleOutcomeNode {
         logger.debug("Starting Castle Request Node");
 
         ImmutableMap<Object, Object> payload = buildPayload(context);
+        CastlePrefetchedCall prefetched = takePrefetched(context, payload);
+
+        CastleDecisionCache decisionCache = decisionCache();
+        JsonValue cached = decisionCache != null
+                ? decisionCache.get(realm, castleService, endpoint(), payload)
+                : null;
+        if (cached != null) {
+            logger.debug("Using the cached Castle decision.");
+            cancel(prefetched);
+            return nextAction(context, cached);
+        }
+
+        // a prefetched call already holds a breaker probe and a limiter permit, and records its own sample
+        CastleConcurrencyLimiter.Permit permit = null;
+        if (prefetched == null) {
+            if (!circuitBreaker.tryAcquire()) {
+                logger.debug("Castle circuit breaker is open. Using the fallback mechanism.");
+                endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.CIRCUIT_OPEN);
+                return nextAction(context, buildFallbackValue());
+            }
+            permit = concurrencyLimiter.tryAcquire();
+            if (permit == null) {
+                circuitBreaker.onCancelled();
+                logger.debug("Too many Castle calls in flight. Using the fallback mechanism.");
+                endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.LIMITED);
+                return nextAction(context, buildFallbackValue());
+            }
+        }
 
+        long start = System.nanoTime();
+        boolean recorded = false;
+        AtomicBoolean followed = new AtomicBoolean();
         try {
             logger.debug("Calling Castle API");
-            CastleResponse castleResponse = callCastle(payload);
+            CastleResponse castleResponse = prefetched != null
+                    ? prefetched.await(callExecutor, castleService.timeout())
+                    : callCastleOnce(payload, followed);
+            long elapsed = System.nanoTime() - start;
+            if (prefetched == null && !followed.get()) {
+                // the call a coalesced one waited for records its own sample
+                circuitBreaker.onSuccess(elapsed);
+                recorded = true;
+                permit.onSuccess(elapsed);
+            }
+            endpointMetrics.recordLatency(metrics, elapsed);
             JsonValue response = mapCastleResponse(castleResponse);
+            endpointMetrics.recordResponse(metrics, response);
+            if (decisionCache != null) {
+                decisionCache.put(realm, castleService, endpoint(), payload, response);
+            }
 
             return nextAction(context, response);
+        } catch (TimeoutException e) {
+            if (prefetched == null && !followed.get()) {
+                circuitBreaker.onFailure();
+                recorded = true;
+                permit.onDropped();
+            }
+            endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.TIMEOUT);
+            logger.warn("Castle API did not answer within " + castleService.timeout()
+                    + "ms. Using the fallback mechanism.");
+
+            return nextAction(context, buildFallbackValue());
+        } catch (CancellationException e) {
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.CANCELLED);
+            logger.warn("Interrupted while waiting for Castle API. Using the fallback mechanism.");
+
+            return nextAction(context, buildFallbackValue());
+        } catch (RejectedExecutionException e) {
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.REJECTED);
+            logger.warn("Too many concurrent Castle API calls. Using the fallback mechanism.");
+
+            return nextAction(context, buildFallbackValue());
         } catch (CastleServerErrorException e) {
+            if (prefetched == null && !followed.get()) {
+                circuitBreaker.onFailure();
+                recorded = true;
+                permit.onDropped();
+            }
+            endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+            endpointMetrics.recordFallback(metrics, CastleEndpointMetrics.SERVER_ERROR);
             logger.warn(
                     "Failure when calling Castle API. Using the fallback mechanism. Code: "
                             + e.getResponseCode() + ". " + e.getClass()
@@ -149,45 +272,84 @@ public abstract class CastleRequestNode extends SingleOutcomeNode {
 
             return nextAction(context, buildFallbackValue());
         } catch (CastleRuntimeException e) {
+            if (prefetched == null && !followed.get() && CastleCircuitBreaker.isOutage(e)) {
+                circuitBreaker.onFailure();
+                recorded = true;
+                permit.onDropped();
+            }
+            endpointMetrics.recordLatency(metrics, System.nanoTime() - start);
+            endpointMetrics.recordError(metrics);
             logger.error("Failure when calling Castle API: " + e.getClass());
             logger.error(e.getStackTrace().toString());
             throw new NodeProcessException(e);
+        } finally {
+            // a call that was rejected, cancelled, refused by Castle or failed in the node must not hold a half-open
+            // probe
+            if (permit != null) {
+                if (!recorded) {
+                    circuitBreaker.onCancelled();
+                }
+                permit.release();
+            }
         }
     }
 
     /* Maps Castle response to a JsonValue object */
     protected JsonValue mapCastleResponse(CastleResponse castleResponse) {
-        return JsonValue.json(gson.fromJson(castleResponse.json().getAsJsonObject(), Map.class));
+        return CastleResponseMapper.map(castleResponse.json(), config.retainFullResponse());
     }
 
     /**
      * Returns a next action based on the current state and the Castle Response.
      */
     protected Action nextAction(TreeContext context, JsonValue response) {
-        return goToNext().replaceSharedState(context.sharedState.put(CASTLE_RESPONSE, response)).build();
+        Object stored = config.compactResponse()
+                ? CastleResponseCodec.encode(response, config.retainFullResponse())
+                : response;
+        return goToNext().replaceSharedState(context.sharedState.put(CASTLE_RESPONSE, stored)).build();
     }
 
+    /**
+     * Returns the fallback response of the configured failover strategy. The value is built once per node
+     * configuration and shared, so it must not be modified.
+     */
     protected JsonValue buildFallbackValue() {
-        float risk = 0.3f;
-
-        switch (config.failOverStrategy()) {
-            case ALLOW:
-                risk = 0.3f;
-                break;
-            case CHALLENGE:
-                risk = 0.7f;
-                break;
-            case DENY:
-                risk = 0.99f;
-                break;
+        return fallbackValues.get(config.failOverStrategy());
+    }
+
+    /* Builds the immutable fallback responses of every failover strategy for the given configuration. */
+    static Map<AuthenticateAction, JsonValue> buildFallbackValues(Config config) throws NodeProcessException {
+        Map<AuthenticateAction, JsonValue> values = new EnumMap<>(AuthenticateAction.class);
+        try {
+            double allowRisk = Double.parseDouble(config.allowFallbackRisk());
+            double challengeRisk = Double.parseDouble(config.challengeFallbackRisk());
+            double denyRisk = Double.parseDouble(config.denyFallbackRisk());
+            values.put(AuthenticateAction.ALLOW, buildFallbackValue(AuthenticateAction.ALLOW, allowRisk));
+            values.put(AuthenticateAction.CHALLENGE, buildFallbackValue(AuthenticateAction.CHALLENGE, challengeRisk));
+            values.put(AuthenticateAction.DENY, buildFallbackValue(AuthenticateAction.DENY, denyRisk));
+        } catch (NumberFormatException e) {
+            throw new NodeProcessException("Invalid fallback risk: " + e.getMessage());
         }
+        return Collections.unmodifiableMap(values);
+    }
 
-        return JsonValue.json(
-                gson.fromJson(
-                        String.format(FALLBACK_RESPONSE, risk, config.failOverStrategy().toString()),
-                        Map.class));
+    private static JsonValue buildFallbackValue(AuthenticateAction action, double risk) {
+        return JsonValue.json(ImmutableMap.of(
+                CastleHelper.RISK, risk,
+                CastleHelper.SIGNALS, ImmutableMap.of(),
+                CastleHelper.POLICY, ImmutableMap.of(
+                        CastleHelper.ACTION, action.toString(),
+                        "id", FALLBACK,
+                        "revision_id", FALLBACK,
+                        "name", FALLBACK),
+                CastleHelper.DEVICE, ImmutableMap.of()));
     }
 
+    /**
+     * Returns the name of the Castle API endpoint the node calls, used to tag its metrics.
+     */
+    protected abstract String endpoint();
+
     /**
      * Abstract method that calls the Castle API. Override it in a subclass.
      */
@@ -197,54 +359,74 @@ public abstract class CastleRequestNode extends SingleOutcomeNode {
      * Builds a request payload for Castle API.
      */
     protected ImmutableMap<Object, Object> buildPayload(TreeContext context) {
-        logger.debug("Building Castle payload");
-        CastleContext castleContext = castle.contextBuilder().fromHttpServletRequest(context.request.servletRequest).ip(
-                context.request.clientIp).build();
-        String request_token = context.sharedState.get(CastleHelper.REQUEST_TOKEN).asString();
-        String username = context.sharedState.get(SharedStateConstants.USERNAME).asString();
-
-        ImmutableMap.Builder<Object, Object> userBuild = ImmutableMap.builder().put(SharedStateConstants.USERNAME,
-                username);
-
-        String realm = context.sharedState.get(REALM).asString();
-        AMIdentity userIdentity = IdUtils.getIdentity(username, realm, coreWrapper.getUserAliasList(realm));
-
-        if (userIdentity != null) {
-            try {
-                userBuild.put(Castle.KEY_EMAIL, userIdentity.getAttribute(config.mailAttribute()).iterator().next());
-                // context.universalId is not present in the registration flow, but once an identity is created
-                // we can fetch the universalId from it
-                userBuild.put("id", userIdentity.getUniversalId());
-            } catch (IdRepoException | SSOException e) {
-                logger.error("Unable to add user email to the request", e);
-            }
-        } else {
-            context.universalId.ifPresent(s -> userBuild.put("id", s));
-            // TODO: should this be more configurable?
-            JsonValue emailFromParams =
-                    context.sharedState.get(new JsonPointer("/objectAttributes/"+config.mailAttribute()));
-
-            if (emailFromParams != null && emailFromParams.isString()) {
-                userBuild.put(Castle.KEY_EMAIL, emailFromParams.asString());
-            }
+        return payloadBuilder.build(context, config.event().toString(), config.status().toString());
+    }
+
+    /**
+     * Returns the response of a matching call prefetched by the {@link CastleProfilerNode}, or {@code null} when the
+     * node must call Castle itself. Nodes whose endpoint cannot be prefetched keep the default.
+     */
+    protected CastlePrefetchedCall takePrefetched(TreeContext context, ImmutableMap<Object, Object> payload) {
+        return null;
+    }
+
+    private static void cancel(CastlePrefetchedCall prefetched) {
+        if (prefetched != null) {
+            prefetched.cancel();
+        }
+    }
+
+    /*
+     * Calls Castle, sharing the call with identical concurrent calls when the node coalesces its calls. Sets followed
+     * when the call waited for an identical one instead of being sent.
+     */
+    private CastleResponse callCastleOnce(ImmutableMap<Object, Object> payload, AtomicBoolean followed)
+            throws NodeProcessException, TimeoutException {
+        CastleCallCoalescer coalescer = callCoalescer();
+        if (coalescer == null) {
+            return sendCastle(payload);
         }
+        return coalescer.call(realm, castleService, endpoint(), payload, callExecutor, () -> followed.set(true),
+                () -> sendCastle(payload));
+    }
 
-        return ImmutableMap.builder()
-                .put(Castle.KEY_EVENT, config.event().toString())
-                .put(Castle.KEY_STATUS, config.status().toString())
-                .put(Castle.KEY_CONTEXT,
-                        ImmutableMap.builder()
-                                .put(Castle.KEY_IP, castleContext.getIp())
-                                .put(Castle.KEY_HEADERS, castleContext.getHeaders())
-                                .build())
-                .put(Castle.KEY_USER, userBuild.build())
-                .put(Castle.KEY_REQUEST_TOKEN, request_token)
-                .build();
+    /* Sends a call to Castle, hedging it when the node hedges its calls. */
+    private CastleResponse sendCastle(ImmutableMap<Object, Object> payload)
+            throws NodeProcessException, TimeoutException {
+        CastleHedger hedger = hedger();
+        if (hedger == null) {
+            return callExecutor.call(() -> callCastle(payload), castleService.timeout());
+        }
+        return hedger.call(callExecutor, () -> callCastle(payload), castleService.timeout());
+    }
+
+    /**
+     * Returns the hedger of the calls of the node, or {@code null} when a slow call must not be sent twice. Nodes
+     * whose calls have side effects keep the default.
+     */
+    protected CastleHedger hedger() {
+        return null;
+    }
+
+    /**
+     * Returns the coalescer of the concurrent identical calls of the node, or {@code null} when every call must be
+     * sent. Nodes whose calls have side effects keep the default.
+     */
+    protected CastleCallCoalescer callCoalescer() {
+        return null;
+    }
+
+    /**
+     * Returns the cache of the Castle decisions of the node, or {@code null} when the decisions of its endpoint must
+     * not be cached. Nodes whose endpoint makes no decision keep the default.
+     */
+    protected CastleDecisionCache decisionCache() {
+        return null;
     }
 
     @Override
     public OutputState[] getOutputs() {
-        return new OutputState[]{new OutputState(CASTLE_RESPONSE)};
+        return new OutputState[]{new OutputState(CASTLE_RESPONSE), new OutputState(CastleHelper.USER_CONTEXT)};
     }
 
     /**
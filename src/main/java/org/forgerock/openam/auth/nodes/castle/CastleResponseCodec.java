@@ -0,0 +1,286 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.ACTION;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.DEVICE;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.POLICY;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.RISK;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.SIGNALS;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.TOKEN;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.forgerock.json.JsonValue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+/**
+ * Encodes the Castle response stored under {@link CastleHelper#CASTLE_RESPONSE} into a short string, so that it
+ * does not inflate the authentication session JWT or the CTS entry on every callback round-trip.
+ * <p>
+ * A trimmed response is written as a small binary record: the risk, the policy action and the signal names, as
+ * one-byte codes for the names this class knows, the device token, and whether the response is a fallback. A fully retained response is written as its
+ * JSON text. Either is deflated when that makes it shorter, and Base64url encoded with a prefix that tells the
+ * format apart. {@link CastleHelper#getRiskResponse} decodes it transparently.
+ * </p>
+ */
+final class CastleResponseCodec {
+
+    private static final String PREFIX = "c1:";
+    private static final String DEFLATED_PREFIX = "c1z:";
+    private static final String ID = "id";
+    private static final String REVISION_ID = "revision_id";
+    private static final String NAME = "name";
+
+    private static final int HAS_RISK = 1;
+    private static final int HAS_ACTION = 2;
+    private static final int HAS_SIGNALS = 4;
+    private static final int HAS_TOKEN = 8;
+    private static final int FULL_JSON = 16;
+    private static final int FALLBACK = 32;
+    private static final int UNKNOWN = 0;
+
+    /*
+     * Append only: the position of a name is its code in encoded responses. Signals are the keys Castle returns, with
+     * their leading '#'; any other name is written in full.
+     */
+    private static final List<String> ACTIONS = Arrays.asList("allow", "challenge", "deny");
+    private static final List<String> SIGNAL_NAMES = Arrays.asList(
+            "#bot_behavior", "#proxy_ip", "#datacenter_ip", "#tor_ip", "#new_device", "#new_country", "#new_isp",
+            "#new_os", "#new_browser", "#new_language", "#spoofed_device", "#multiple_accounts_per_device",
+            "#multiple_accounts_per_ip", "#impossible_travel", "#disposable_email", "#suspicious_email",
+            "#high_activity_device", "#high_activity_ip", "#unusual_time_of_day", "#headless_browser", "#vpn_ip");
+    private static final Map<String, Integer> ACTION_CODES = codes(ACTIONS);
+    private static final Map<String, Integer> SIGNAL_CODES = codes(SIGNAL_NAMES);
+
+    private CastleResponseCodec() {
+    }
+
+    /**
+     * Returns whether a shared state value is an encoded Castle response.
+     *
+     * @param value The value stored under {@link CastleHelper#CASTLE_RESPONSE}.
+     * @return {@code true} if it must be decoded.
+     */
+    static boolean isEncoded(JsonValue value) {
+        if (!value.isString()) {
+            return false;
+        }
+        String string = value.asString();
+        return string.startsWith(PREFIX) || string.startsWith(DEFLATED_PREFIX);
+    }
+
+    /**
+     * Encodes a mapped Castle response.
+     *
+     * @param response The response, as built by {@link CastleResponseMapper}.
+     * @param fullResponse Whether the response holds every field returned by Castle.
+     * @return The encoded response.
+     */
+    static String encode(JsonValue response, boolean fullResponse) {
+        byte[] record = fullResponse ? encodeFull(response) : encodeTrimmed(response);
+        byte[] deflated = deflate(record);
+        Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+        return deflated.length < record.length
+                ? DEFLATED_PREFIX + base64.encodeToString(deflated)
+                : PREFIX + base64.encodeToString(record);
+    }
+
+    /**
+     * Decodes an encoded Castle response.
+     *
+     * @param encoded The encoded response.
+     * @return The response, as built by {@link CastleResponseMapper}.
+     * @throws IllegalArgumentException If the value is not a valid encoded response.
+     */
+    static JsonValue decode(String encoded) {
+        try {
+            byte[] record = encoded.startsWith(DEFLATED_PREFIX)
+                    ? inflate(Base64.getUrlDecoder().decode(encoded.substring(DEFLATED_PREFIX.length())))
+                    : Base64.getUrlDecoder().decode(encoded.substring(PREFIX.length()));
+            return decodeRecord(record);
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalArgumentException("Invalid encoded Castle response", e);
+        }
+    }
+
+    private static byte[] encodeTrimmed(JsonValue response) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            JsonValue risk = response.get(RISK);
+            String action = response.get(POLICY).get(ACTION).asString();
+            JsonValue signals = response.get(SIGNALS);
+            String token = response.get(DEVICE).get(TOKEN).asString();
+            boolean fallback = CastleRequestNode.FALLBACK.equals(response.get(POLICY).get(ID).asString());
+            out.writeByte((risk.isNumber() ? HAS_RISK : 0) | (action != null ? HAS_ACTION : 0)
+                    | (signals.isMap() ? HAS_SIGNALS : 0) | (token != null ? HAS_TOKEN : 0)
+                    | (fallback ? FALLBACK : 0));
+            if (risk.isNumber()) {
+                out.writeDouble(risk.asDouble());
+            }
+            if (action != null) {
+                writeName(out, action, ACTION_CODES);
+            }
+            if (signals.isMap()) {
+                out.writeShort(signals.size());
+                for (String signal : signals.keys()) {
+                    writeName(out, signal, SIGNAL_CODES);
+                }
+            }
+            if (token != null) {
+                out.writeUTF(token);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeFull(JsonValue response) {
+        byte[] json = new Gson().toJson(response.getObject()).getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[json.length + 1];
+        record[0] = FULL_JSON;
+        System.arraycopy(json, 0, record, 1, json.length);
+        return record;
+    }
+
+    private static JsonValue decodeRecord(byte[] record) throws IOException {
+        if (record.length > 0 && (record[0] & FULL_JSON) != 0) {
+            String json = new String(record, 1, record.length - 1, StandardCharsets.UTF_8);
+            return CastleResponseMapper.map(new JsonParser().parse(json), true);
+        }
+        Map<String, Object> response = new LinkedHashMap<>(8);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            int flags = in.readUnsignedByte();
+            if ((flags & HAS_RISK) != 0) {
+                double risk = in.readDouble();
+                if (risk == (int) risk) {
+                    // the mapper keeps integral risks, such as 1, as integers
+                    response.put(RISK, (int) risk);
+                } else {
+                    response.put(RISK, risk);
+                }
+            }
+            boolean fallback = (flags & FALLBACK) != 0;
+            if ((flags & HAS_ACTION) != 0 || fallback) {
+                Map<String, Object> policy = new LinkedHashMap<>(8);
+                if ((flags & HAS_ACTION) != 0) {
+                    policy.put(ACTION, readName(in, ACTIONS));
+                }
+                if (fallback) {
+                    // the markers by which journeys tell a fallback decision apart
+                    policy.put(ID, CastleRequestNode.FALLBACK);
+                    policy.put(REVISION_ID, CastleRequestNode.FALLBACK);
+                    policy.put(NAME, CastleRequestNode.FALLBACK);
+                }
+                response.put(POLICY, policy);
+            }
+            if ((flags & HAS_SIGNALS) != 0) {
+                int count = in.readUnsignedShort();
+                Map<String, Object> signals = new LinkedHashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    signals.put(readName(in, SIGNAL_NAMES), Collections.emptyMap());
+                }
+                response.put(SIGNALS, signals);
+            }
+            if ((flags & HAS_TOKEN) != 0) {
+                response.put(DEVICE, Collections.singletonMap(TOKEN, in.readUTF()));
+            } else if (fallback) {
+                response.put(DEVICE, Collections.emptyMap());
+            }
+        }
+        return JsonValue.json(response);
+    }
+
+    /* Writes a known name as its one-based code, and any other name as 0 followed by the name. */
+    private static void writeName(DataOutputStream out, String name, Map<String, Integer> codes) throws IOException {
+        Integer code = codes.get(name);
+        if (code != null) {
+            out.writeByte(code);
+        } else {
+            out.writeByte(UNKNOWN);
+            out.writeUTF(name);
+        }
+    }
+
+    private static String readName(DataInputStream in, List<String> names) throws IOException {
+        int code = in.readUnsignedByte();
+        if (code == UNKNOWN) {
+            return in.readUTF();
+        } else if (code > names.size()) {
+            throw new IOException("Unknown name code " + code);
+        }
+        return names.get(code - 1);
+    }
+
+    private static Map<String, Integer> codes(List<String> names) {
+        Map<String, Integer> codes = new HashMap<>(names.size() * 2);
+        for (int i = 0; i < names.size(); i++) {
+            codes.put(names.get(i), i + 1);
+        }
+        return Collections.unmodifiableMap(codes);
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] buffer = new byte[input.length + 64];
+            int length = deflater.deflate(buffer);
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : input;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated encoded Castle response");
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
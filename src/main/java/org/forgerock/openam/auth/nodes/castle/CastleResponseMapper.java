@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.ACTION;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.DEVICE;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.POLICY;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.RISK;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.SIGNALS;
+import static org.forgerock.openam.auth.nodes.castle.CastleHelper.TOKEN;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Converts the Gson tree of a Castle response directly into the structure stored under
+ * {@link CastleHelper#CASTLE_RESPONSE}, without going through an intermediate {@code Map} built by Gson.
+ * <p>
+ * Unless full retention is requested only the fields read by the downstream Castle nodes are kept:
+ * {@code risk}, {@code policy.action}, the {@code signals} names and {@code device.token}.
+ * </p>
+ */
+final class CastleResponseMapper {
+
+    private CastleResponseMapper() {
+    }
+
+    /**
+     * Maps a Castle response.
+     *
+     * @param json The parsed Castle response.
+     * @param retainFullResponse Whether every field of the response should be kept.
+     * @return The response as a JsonValue.
+     */
+    static JsonValue map(JsonElement json, boolean retainFullResponse) {
+        if (json == null || !json.isJsonObject()) {
+            return JsonValue.json(JsonValue.object());
+        }
+        return JsonValue.json(retainFullResponse ? toObject(json) : trim(json.getAsJsonObject()));
+    }
+
+    private static Map<String, Object> trim(JsonObject response) {
+        Map<String, Object> trimmed = new LinkedHashMap<>(8);
+        JsonElement risk = response.get(RISK);
+        if (risk != null && risk.isJsonPrimitive()) {
+            trimmed.put(RISK, toPrimitive(risk.getAsJsonPrimitive()));
+        }
+        JsonElement action = child(response.get(POLICY), ACTION);
+        if (action != null) {
+            trimmed.put(POLICY, Collections.singletonMap(ACTION, toObject(action)));
+        }
+        JsonElement signals = response.get(SIGNALS);
+        if (signals != null && signals.isJsonObject()) {
+            Map<String, Object> names = new LinkedHashMap<>(signals.getAsJsonObject().size() * 2);
+            for (Map.Entry<String, JsonElement> signal : signals.getAsJsonObject().entrySet()) {
+                names.put(signal.getKey(), Collections.emptyMap());
+            }
+            trimmed.put(SIGNALS, names);
+        }
+        JsonElement token = child(response.get(DEVICE), TOKEN);
+        if (token != null) {
+            trimmed.put(DEVICE, Collections.singletonMap(TOKEN, toObject(token)));
+        }
+        return trimmed;
+    }
+
+    private static JsonElement child(JsonElement parent, String name) {
+        return parent != null && parent.isJsonObject() ? parent.getAsJsonObject().get(name) : null;
+    }
+
+    private static Object toObject(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        } else if (element.isJsonPrimitive()) {
+            return toPrimitive(element.getAsJsonPrimitive());
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            List<Object> list = new ArrayList<>(array.size());
+            for (JsonElement item : array) {
+                list.add(toObject(item));
+            }
+            return list;
+        }
+        JsonObject object = element.getAsJsonObject();
+        Map<String, Object> map = new LinkedHashMap<>(object.size() * 2);
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            map.put(entry.getKey(), toObject(entry.getValue()));
+        }
+        return map;
+    }
+
+    private static Object toPrimitive(JsonPrimitive primitive) {
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        } else if (primitive.isString()) {
+            return primitive.getAsString();
+        }
+        String number = primitive.getAsString();
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            long value = primitive.getAsLong();
+            if (value == (int) value) {
+                return (int) value;
+            }
+            return value;
+        }
+        return primitive.getAsDouble();
+    }
+}
@@ -25,7 +25,6 @@ import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 
 import javax.inject.Inject;
 
@@ -35,6 +34,10 @@ public class CastleRiskNode extends CastleRequestNode {
     public interface Config extends CastleRequestNode.Config {
     }
 
+    private final CastleDecisionCache decisionCache;
+    private final CastleCallCoalescer callCoalescer;
+    private final CastleHedgers hedgers;
+
     /**
      * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of other classes
      * from the plugin.
@@ -43,9 +46,38 @@ public class CastleRiskNode extends CastleRequestNode {
      */
     @Inject
     public CastleRiskNode(@Assisted Config config, CoreWrapper coreWrapper,
-                         AnnotatedServiceRegistry serviceRegistry, @Assisted Realm realm)
+                         CastleServiceSnapshots serviceSnapshots, @Assisted Realm realm,
+                         CastleClientRegistry clientRegistry, CastleCircuitBreakers circuitBreakers,
+                         CastleIdentityCache identityCache, CastleCallExecutors callExecutors,
+                         CastleConcurrencyLimiters concurrencyLimiters, CastleMetrics metrics,
+                         CastleDecisionCache decisionCache,
+                         CastleCallCoalescer callCoalescer, CastleHedgers hedgers)
             throws NodeProcessException {
-        super(config, coreWrapper, serviceRegistry, realm);
+        super(config, coreWrapper, serviceSnapshots, realm, clientRegistry, circuitBreakers,
+                identityCache, callExecutors, concurrencyLimiters, metrics);
+        this.decisionCache = decisionCache;
+        this.callCoalescer = callCoalescer;
+        this.hedgers = hedgers;
+    }
+
+    @Override
+    protected CastleDecisionCache decisionCache() {
+        return decisionCache;
+    }
+
+    @Override
+    protected CastleCallCoalescer callCoalescer() {
+        return callCoalescer;
+    }
+
+    @Override
+    protected CastleHedger hedger() {
+        return hedgers.get(realm, castleService, endpoint());
+    }
+
+    @Override
+    protected String endpoint() {
+        return "risk";
     }
 
     @Override
@@ -3,12 +3,17 @@ package org.forgerock.openam.auth.nodes.castle;
 import static org.forgerock.openam.auth.nodes.castle.CastleHelper.RISK;
 import static org.forgerock.openam.auth.nodes.castle.CastleHelper.getRiskResponse;
 
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.ResourceBundle;
 
 import javax.inject.Inject;
 
 import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.InputState;
@@ -30,8 +35,10 @@ import com.sun.identity.sm.RequiredValueValidator;
 public class CastleScoreNode implements Node {
 
     private static final String BUNDLE = "org/forgerock/openam/auth/nodes/castle/CastleScoreNode";
-    private final Config config;
+    private static final String BAND_PREFIX = "BAND_";
     private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final double threshold;
+    private final double[] bands;
 
 
     /**
@@ -47,6 +54,14 @@ public class CastleScoreNode implements Node {
             return ".6";
         }
 
+        /**
+         * Score Bands
+         */
+        @Attribute(order = 200, validators = {DecimalBetweenZeroAndOneValidator.class})
+        default List<String> scoreBands() {
+            return Collections.emptyList();
+        }
+
     }
 
     /**
@@ -57,7 +72,8 @@ public class CastleScoreNode implements Node {
      */
     @Inject
     public CastleScoreNode(@Assisted Config config) {
-        this.config = config;
+        this.threshold = Double.parseDouble(config.scoreThreshold());
+        this.bands = parseBands(config.scoreBands(), logger);
     }
 
     @Override
@@ -65,13 +81,46 @@ public class CastleScoreNode implements Node {
         logger.debug("Starting Castle Score Node");
         JsonValue riskResponse = getRiskResponse(context);
         double policyScore = riskResponse.get(RISK).asDouble();
-        if (policyScore >= Double.parseDouble(config.scoreThreshold())) {
+        if (bands.length > 0) {
+            return Action.goTo(BAND_PREFIX + bandOf(policyScore)).build();
+        }
+        if (policyScore >= threshold) {
             return Action.goTo(CastleScoreOutcome.GREATER_THAN_OR_EQUAL.name()).build();
         }
         return Action.goTo(CastleScoreOutcome.LESS_THAN.name()).build();
 
     }
 
+    /* Returns the index of the band of a score: the number of boundaries at or below it. */
+    private int bandOf(double score) {
+        int index = Arrays.binarySearch(bands, score);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Parses the band boundaries, ignoring the values that are not numbers, and sorts them.
+     *
+     * @param values The configured band boundaries.
+     * @param logger The logger to warn about ignored values with.
+     * @return The ascending, distinct boundaries.
+     */
+    static double[] parseBands(List<String> values, Logger logger) {
+        if (values == null) {
+            return new double[0];
+        }
+        double[] bands = new double[values.size()];
+        int count = 0;
+        for (String value : values) {
+            try {
+                bands[count++] = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                count--;
+                logger.warn("Ignoring invalid Castle score band: {}", value);
+            }
+        }
+        return Arrays.stream(bands, 0, count).sorted().distinct().toArray();
+    }
+
     @Override
     public InputState[] getInputs() {
         return new InputState[]{new InputState(CastleHelper.CASTLE_RESPONSE, true)};
@@ -90,15 +139,37 @@ public class CastleScoreNode implements Node {
      * Defines the possible outcomes from this Castle Score Node
      */
     public static class CastleScoreOutcomeProvider implements OutcomeProvider {
+        private final Logger logger = LoggerFactory.getLogger("amAuth");
+
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) {
             ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
                                                                        CastleScoreNode.class
                                                                                .getClassLoader());
-            return ImmutableList.of(
-                    new Outcome(CastleScoreOutcome.GREATER_THAN_OR_EQUAL.name(),
-                                bundle.getString("greaterThanOrEqualOutcome")),
-                    new Outcome(CastleScoreOutcome.LESS_THAN.name(), bundle.getString("lessThanOutcome")));
+            double[] bands;
+            try {
+                bands = parseBands(nodeAttributes.get("scoreBands").asList(String.class), logger);
+            } catch (JsonValueException e) {
+                bands = new double[0];
+            }
+            if (bands.length == 0) {
+                return ImmutableList.of(
+                        new Outcome(CastleScoreOutcome.GREATER_THAN_OR_EQUAL.name(),
+                                    bundle.getString("greaterThanOrEqualOutcome")),
+                        new Outcome(CastleScoreOutcome.LESS_THAN.name(), bundle.getString("lessThanOutcome")));
+            }
+            List<Outcome> outcomes = new ArrayList<>(bands.length + 1);
+            outcomes.add(new Outcome(BAND_PREFIX + 0,
+                                     MessageFormat.format(bundle.getString("lowestBandOutcome"), bands[0])));
+            for (int i = 1; i < bands.length; i++) {
+                outcomes.add(new Outcome(BAND_PREFIX + i,
+                                         MessageFormat.format(bundle.getString("bandOutcome"), bands[i - 1],
+                                                              bands[i])));
+            }
+            outcomes.add(new Outcome(BAND_PREFIX + bands.length,
+                                     MessageFormat.format(bundle.getString("highestBandOutcome"),
+                                                          bands[bands.length - 1])));
+            return outcomes;
         }
     }
 }
@@ -4,6 +4,8 @@ import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.annotations.sm.Config;
 import org.forgerock.openam.sm.annotations.adapters.Password;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 @Config(scope = Config.Scope.REALM)
@@ -20,6 +22,14 @@ public interface CastleService {
     @Attribute(order = 50, requiredValue = true)
     String uri();
 
+    /**
+     * Profiler Script URL
+     */
+    @Attribute(order = 60)
+    default String profilerScriptUrl() {
+        return "";
+    }
+
     /**
      * The Castle API Secret
      */
@@ -58,4 +68,268 @@ public interface CastleService {
      */
     @Attribute(order = 800)
     boolean logHttpRequests();
+
+    /**
+     * Log Queue Capacity
+     */
+    @Attribute(order = 900)
+    default int logQueueCapacity() {
+        return 10000;
+    }
+
+    /**
+     * Log Batch Size
+     */
+    @Attribute(order = 910)
+    default int logBatchSize() {
+        return 50;
+    }
+
+    /**
+     * Log Linger Time
+     */
+    @Attribute(order = 920)
+    default int logLingerTime() {
+        return 50;
+    }
+
+    /**
+     * Log Max In-Flight Requests
+     */
+    @Attribute(order = 930)
+    default int logMaxInFlight() {
+        return 8;
+    }
+
+    /**
+     * Log Overflow Policy
+     */
+    @Attribute(order = 940)
+    default CastleLogPipeline.OverflowPolicy logOverflowPolicy() {
+        return CastleLogPipeline.OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * Circuit Breaker Enabled
+     */
+    @Attribute(order = 1000)
+    default boolean breakerEnabled() {
+        return false;
+    }
+
+    /**
+     * Circuit Breaker Window Size
+     */
+    @Attribute(order = 1010)
+    default int breakerWindowSize() {
+        return 20;
+    }
+
+    /**
+     * Circuit Breaker Failure Rate
+     */
+    @Attribute(order = 1020)
+    default int breakerFailureRate() {
+        return 50;
+    }
+
+    /**
+     * Circuit Breaker Slow Call Duration
+     */
+    @Attribute(order = 1030)
+    default int breakerSlowCallDuration() {
+        return 1000;
+    }
+
+    /**
+     * Circuit Breaker Slow Call Rate
+     */
+    @Attribute(order = 1040)
+    default int breakerSlowCallRate() {
+        return 80;
+    }
+
+    /**
+     * Circuit Breaker Open Duration
+     */
+    @Attribute(order = 1050)
+    default int breakerOpenDuration() {
+        return 30000;
+    }
+
+    /**
+     * Circuit Breaker Half-Open Probes
+     */
+    @Attribute(order = 1060)
+    default int breakerHalfOpenProbes() {
+        return 3;
+    }
+
+    /**
+     * Identity Cache TTL
+     */
+    @Attribute(order = 1100)
+    default int identityCacheTtl() {
+        return 0;
+    }
+
+    /**
+     * Identity Cache Size
+     */
+    @Attribute(order = 1110)
+    default int identityCacheSize() {
+        return 10000;
+    }
+
+    /**
+     * Identity Negative Caching
+     */
+    @Attribute(order = 1120)
+    default boolean identityNegativeCaching() {
+        return false;
+    }
+
+    /**
+     * Identity Cache Invalidation
+     */
+    @Attribute(order = 1130)
+    default boolean identityCacheInvalidation() {
+        return true;
+    }
+
+    /**
+     * Call Mode
+     */
+    @Attribute(order = 1200)
+    default CastleCallExecutor.CallMode callMode() {
+        return CastleCallExecutor.CallMode.SYNCHRONOUS;
+    }
+
+    /**
+     * Executor Threads
+     */
+    @Attribute(order = 1210)
+    default int executorThreads() {
+        return 32;
+    }
+
+    /**
+     * Executor Queue Size
+     */
+    @Attribute(order = 1220)
+    default int executorQueueSize() {
+        return 64;
+    }
+
+    /**
+     * Decision Cache TTL
+     */
+    @Attribute(order = 1300)
+    default int decisionCacheTtl() {
+        return 0;
+    }
+
+    /**
+     * Decision Cache Size
+     */
+    @Attribute(order = 1310)
+    default int decisionCacheSize() {
+        return 10000;
+    }
+
+    /**
+     * Decision Cache Events
+     */
+    @Attribute(order = 1320)
+    default List<String> decisionCacheEvents() {
+        return Collections.singletonList("$login");
+    }
+
+    /**
+     * Decision Cache Fingerprint
+     */
+    @Attribute(order = 1330)
+    default List<String> decisionCacheFingerprint() {
+        return Arrays.asList("EVENT", "STATUS", "USER_ID", "IP", "REQUEST_TOKEN");
+    }
+
+    /**
+     * Coalesce Calls
+     */
+    @Attribute(order = 1400)
+    default boolean coalesceCalls() {
+        return false;
+    }
+
+    /**
+     * Concurrency Limiter Enabled
+     */
+    @Attribute(order = 1500)
+    default boolean limiterEnabled() {
+        return false;
+    }
+
+    /**
+     * Concurrency Limiter Initial Limit
+     */
+    @Attribute(order = 1510)
+    default int limiterInitialLimit() {
+        return 20;
+    }
+
+    /**
+     * Concurrency Limiter Minimum Limit
+     */
+    @Attribute(order = 1520)
+    default int limiterMinLimit() {
+        return 2;
+    }
+
+    /**
+     * Concurrency Limiter Maximum Limit
+     */
+    @Attribute(order = 1530)
+    default int limiterMaxLimit() {
+        return 200;
+    }
+
+    /**
+     * Concurrency Limiter Latency Threshold
+     */
+    @Attribute(order = 1540)
+    default int limiterLatencyThreshold() {
+        return 0;
+    }
+
+    /**
+     * Hedging Enabled
+     */
+    @Attribute(order = 1600)
+    default boolean hedgingEnabled() {
+        return false;
+    }
+
+    /**
+     * Hedging Percentile
+     */
+    @Attribute(order = 1610)
+    default int hedgingPercentile() {
+        return 95;
+    }
+
+    /**
+     * Hedging Minimum Delay
+     */
+    @Attribute(order = 1620)
+    default int hedgingMinDelay() {
+        return 20;
+    }
+
+    /**
+     * Hedging Budget
+     */
+    @Attribute(order = 1630)
+    default int hedgingBudget() {
+        return 5;
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of a realm's Castle Service configuration, read from SMS once and then shared by every node of
+ * the realm until the configuration changes.
+ * <p>
+ * Every attribute is read when the snapshot is taken, so that nodes never reach SMS and never copy the API secret
+ * again. Lists are made unmodifiable; the API secret is shared and must not be changed by callers.
+ * </p>
+ */
+final class CastleServiceSnapshot {
+
+    private final long version;
+    private final long takenAt;
+    private final CastleService service;
+
+    private CastleServiceSnapshot(long version, CastleService service) {
+        this.version = version;
+        this.takenAt = System.nanoTime();
+        this.service = service;
+    }
+
+    /**
+     * Takes a snapshot of a Castle Service configuration.
+     *
+     * @param version The version of the snapshot, which increases every time the realm's snapshot is taken again.
+     * @param live The configuration as returned by SMS.
+     * @return The snapshot.
+     */
+    static CastleServiceSnapshot of(long version, CastleService live) {
+        Map<String, Object> values = new HashMap<>();
+        for (Method method : CastleService.class.getMethods()) {
+            if (method.getParameterCount() == 0) {
+                values.put(method.getName(), copyOf(invoke(method, live)));
+            }
+        }
+        CastleService service = (CastleService) Proxy.newProxyInstance(CastleService.class.getClassLoader(),
+                new Class<?>[]{CastleService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "CastleService snapshot " + version;
+                    default:
+                        return values.get(method.getName());
+                    }
+                });
+        return new CastleServiceSnapshot(version, service);
+    }
+
+    private static Object invoke(Method method, CastleService live) {
+        try {
+            return method.invoke(live);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Object copyOf(Object value) {
+        if (value instanceof List) {
+            return Collections.unmodifiableList(new ArrayList<>((List<?>) value));
+        }
+        return value;
+    }
+
+    /**
+     * Returns the version of the snapshot.
+     *
+     * @return The version.
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns the time the snapshot was taken, from {@link System#nanoTime()}.
+     *
+     * @return The time the snapshot was taken.
+     */
+    long takenAt() {
+        return takenAt;
+    }
+
+    /**
+     * Returns the configuration of the snapshot.
+     *
+     * @return The configuration.
+     */
+    CastleService service() {
+        return service;
+    }
+}
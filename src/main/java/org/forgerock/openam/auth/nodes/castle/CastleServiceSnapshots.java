@@ -0,0 +1,161 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.security.AccessController;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.security.AdminTokenAction;
+import com.sun.identity.sm.DNMapper;
+import com.sun.identity.sm.SMSException;
+import com.sun.identity.sm.ServiceConfigManager;
+import com.sun.identity.sm.ServiceListener;
+
+/**
+ * Holds a {@link CastleServiceSnapshot} of each realm's Castle Service, so that nodes read their configuration
+ * without reaching SMS every time they are created.
+ * <p>
+ * Once the plugin has started, an SMS listener drops the snapshot of a realm whose Castle Service changes, and every
+ * snapshot when the service schema or its global configuration changes; the next node of the realm takes a new one.
+ * Until the listener is registered, or if it cannot be, snapshots are taken again after a few seconds instead.
+ * </p>
+ */
+@Singleton
+public class CastleServiceSnapshots {
+
+    private static final String SERVICE_NAME = CastleService.class.getSimpleName();
+    private static final long UNLISTENED_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Logger logger = LoggerFactory.getLogger("amAuth");
+    private final ConcurrentMap<String, CastleServiceSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AnnotatedServiceRegistry serviceRegistry;
+    private volatile ServiceConfigManager configManager;
+    private volatile String listenerId;
+
+    /**
+     * Creates the snapshot holder.
+     *
+     * @param serviceRegistry The registry of the realm services.
+     */
+    @Inject
+    public CastleServiceSnapshots(AnnotatedServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    /**
+     * Returns the snapshot of the realm's Castle Service, taking it if there is none.
+     *
+     * @param realm The realm of the node.
+     * @return The snapshot.
+     * @throws SSOException If the Castle Service cannot be read.
+     * @throws SMSException If the Castle Service cannot be read.
+     * @throws NoSuchElementException If the Castle Service is not configured in the realm.
+     */
+    CastleServiceSnapshot get(Realm realm) throws SSOException, SMSException {
+        String key = realm.asPath();
+        CastleServiceSnapshot snapshot = snapshots.get(key);
+        if (snapshot != null && (listenerId != null
+                || System.nanoTime() - snapshot.takenAt() < UNLISTENED_MAX_AGE_NANOS)) {
+            return snapshot;
+        }
+        long invalidation = invalidations.get();
+        snapshot = CastleServiceSnapshot.of(versions.incrementAndGet(),
+                serviceRegistry.getRealmSingleton(CastleService.class, realm).get());
+        if (invalidations.get() == invalidation) {
+            // a change notified while the snapshot was taken may not be in it, so it is only kept if there was none
+            snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Registers the SMS listener that drops the snapshots of changed configurations. Called on plugin startup.
+     */
+    void startListening() {
+        try {
+            ServiceConfigManager manager = new ServiceConfigManager(SERVICE_NAME,
+                    AccessController.doPrivileged(AdminTokenAction.getInstance()));
+            String id = manager.addListener(new Listener());
+            snapshots.clear();
+            configManager = manager;
+            listenerId = id;
+        } catch (SMSException | SSOException e) {
+            logger.warn("Cannot listen to Castle Service changes. Reading it again every "
+                    + TimeUnit.NANOSECONDS.toSeconds(UNLISTENED_MAX_AGE_NANOS) + "s instead.", e);
+        }
+    }
+
+    /**
+     * Removes the SMS listener and drops every snapshot. Called on plugin shutdown.
+     */
+    void shutdown() {
+        String id = listenerId;
+        listenerId = null;
+        if (id != null) {
+            configManager.removeListener(id);
+        }
+        invalidateAll();
+    }
+
+    private void invalidate(String realm) {
+        invalidations.incrementAndGet();
+        snapshots.remove(realm);
+    }
+
+    private void invalidateAll() {
+        invalidations.incrementAndGet();
+        snapshots.clear();
+    }
+
+    private final class Listener implements ServiceListener {
+
+        @Override
+        public void schemaChanged(String serviceName, String version) {
+            logger.debug("Castle Service schema changed. Dropping every Castle Service snapshot.");
+            invalidateAll();
+        }
+
+        @Override
+        public void globalConfigChanged(String serviceName, String version, String groupName,
+                String serviceComponent, int type) {
+            invalidateAll();
+        }
+
+        @Override
+        public void organizationConfigChanged(String serviceName, String version, String orgName, String groupName,
+                String serviceComponent, int type) {
+            String realm = DNMapper.orgNameToRealmName(orgName);
+            logger.debug("Castle Service of realm {} changed. Dropping its snapshot.", realm);
+            invalidate(realm);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Finds the first configured signal outcome of the Castle Signal Node that a Castle response triggers.
+ * <p>
+ * An outcome is a signal name such as {@code #proxy_ip}, a prefix pattern such as {@code #new_*} that matches every
+ * signal starting with {@code #new_}, or a combination such as {@code #new_device+#new_country} that matches when each
+ * of its parts does. Earlier outcomes take priority.
+ * </p>
+ * <p>
+ * Matchers are compiled once per distinct outcome list and shared through a {@link CastleCompiledCache}. Names and prefixes are indexed by the position
+ * of their outcome, so a response is matched by looking up each triggered signal rather than by scanning the
+ * configured outcomes; a combination is only checked when one of its named parts is triggered.
+ * </p>
+ */
+final class CastleSignalMatcher {
+
+    private static final CastleCompiledCache<CastleSignalMatcher> MATCHERS =
+            new CastleCompiledCache<>(CastleSignalMatcher::new);
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final List<String> outcomes;
+    private final Map<String, Integer> names = new HashMap<>();
+    private final Map<String, Integer> prefixes = new HashMap<>();
+    private final int[] prefixLengths;
+    private final Map<String, List<Combination>> combinationsByName = new HashMap<>();
+    private final List<Combination> unanchoredCombinations = new ArrayList<>();
+
+    private CastleSignalMatcher(List<String> outcomes) {
+        this.outcomes = outcomes;
+        TreeSet<Integer> lengths = new TreeSet<>();
+        for (int priority = 0; priority < outcomes.size(); priority++) {
+            String outcome = outcomes.get(priority).trim();
+            if (outcome.indexOf('+') >= 0) {
+                addCombination(outcome, priority);
+            } else if (isPrefix(outcome)) {
+                String prefix = outcome.substring(0, outcome.length() - 1);
+                prefixes.putIfAbsent(prefix, priority);
+                lengths.add(prefix.length());
+            } else if (!outcome.isEmpty()) {
+                names.putIfAbsent(outcome, priority);
+            }
+        }
+        this.prefixLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns the matcher compiled from the given outcomes.
+     *
+     * @param outcomes The configured signal outcomes, in priority order.
+     * @return The matcher.
+     */
+    static CastleSignalMatcher of(List<String> outcomes) {
+        return MATCHERS.get(outcomes);
+    }
+
+    /**
+     * Finds the first outcome triggered by the given signals.
+     *
+     * @param triggered The names of the signals in the Castle response.
+     * @return The configured outcome, or {@code null} if none is triggered.
+     */
+    String match(Collection<String> triggered) {
+        int best = NO_MATCH;
+        for (String signal : triggered) {
+            best = Math.min(best, priorityOf(signal));
+            List<Combination> combinations = combinationsByName.get(signal);
+            if (combinations != null) {
+                best = match(combinations, triggered, best);
+            }
+            if (best == 0) {
+                break;
+            }
+        }
+        if (!triggered.isEmpty()) {
+            best = match(unanchoredCombinations, triggered, best);
+        }
+        return best == NO_MATCH ? null : outcomes.get(best);
+    }
+
+    private int priorityOf(String signal) {
+        int best = names.getOrDefault(signal, NO_MATCH);
+        for (int length : prefixLengths) {
+            if (length > signal.length()) {
+                break;
+            }
+            best = Math.min(best, prefixes.getOrDefault(signal.substring(0, length), NO_MATCH));
+        }
+        return best;
+    }
+
+    private static int match(List<Combination> combinations, Collection<String> triggered, int best) {
+        for (Combination combination : combinations) {
+            if (combination.priority < best && combination.matches(triggered)) {
+                best = combination.priority;
+            }
+        }
+        return best;
+    }
+
+    private void addCombination(String outcome, int priority) {
+        List<String> parts = new ArrayList<>();
+        String anchor = null;
+        for (String part : outcome.split("\\+")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            parts.add(part);
+            if (anchor == null && !isPrefix(part)) {
+                anchor = part;
+            }
+        }
+        if (parts.isEmpty()) {
+            return;
+        }
+        Combination combination = new Combination(parts, priority);
+        if (anchor != null) {
+            combinationsByName.computeIfAbsent(anchor, name -> new ArrayList<>()).add(combination);
+        } else {
+            unanchoredCombinations.add(combination);
+        }
+    }
+
+    private static boolean isPrefix(String pattern) {
+        return pattern.endsWith("*");
+    }
+
+    private static boolean matches(String part, Collection<String> triggered) {
+        if (!isPrefix(part)) {
+            return triggered.contains(part);
+        }
+        String prefix = part.substring(0, part.length() - 1);
+        for (String signal : triggered) {
+            if (signal.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Combination {
+        private final String[] parts;
+        private final int priority;
+
+        private Combination(List<String> parts, int priority) {
+            this.parts = parts.toArray(new String[0]);
+            this.priority = priority;
+        }
+
+        private boolean matches(Collection<String> triggered) {
+            for (String part : parts) {
+                if (!CastleSignalMatcher.matches(part, triggered)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -8,12 +8,10 @@ import static org.forgerock.openam.auth.nodes.castle.CastleHelper.SIGNALS;
 import static org.forgerock.openam.auth.nodes.castle.CastleHelper.getRiskResponse;
 
 import java.util.List;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -33,7 +31,7 @@ import com.google.inject.assistedinject.Assisted;
         configClass = CastleSignalNode.Config.class, tags = {"risk"})
 public class CastleSignalNode implements Node {
 
-    private final Config config;
+    private final CastleSignalMatcher matcher;
     private final Logger logger = LoggerFactory.getLogger("amAuth");
 
 
@@ -60,25 +58,15 @@ public class CastleSignalNode implements Node {
      */
     @Inject
     public CastleSignalNode(@Assisted Config config) {
-        this.config = config;
+        this.matcher = CastleSignalMatcher.of(config.signalOutcomes());
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
         logger.debug("Starting Castle Signal Node");
         JsonValue riskResponse = getRiskResponse(context);
-        Set<String> reasonCodes = riskResponse.get(SIGNALS).asMap().keySet();
-
-        if (CollectionUtils.isEmpty(reasonCodes)) {
-            return goTo(NONE_TRIGGERED).build();
-        }
-        List<String> outcomes = config.signalOutcomes();
-        for (String outcome : outcomes) {
-            if (reasonCodes.contains(outcome)) {
-                return goTo(outcome).build();
-            }
-        }
-        return goTo(NONE_TRIGGERED).build();
+        String outcome = matcher.match(riskResponse.get(SIGNALS).keys());
+        return goTo(outcome != null ? outcome : NONE_TRIGGERED).build();
     }
 
     @Override
@@ -0,0 +1,46 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+/*
+ * Loads the Castle JS and creates the request token on submit. The node loads this file from the Profiler Script URL
+ * of the Castle Service, passing the Castle JS link in the data-castle-src attribute and the login helpers of the
+ * page, when there are any, in the castleLoginHelpers property, so that the file itself is the same for every realm
+ * and can be cached by browsers.
+ */
+(function () {
+    var loader = document.currentScript;
+    var script = document.createElement('script');
+    script.type = 'text/javascript';
+    script.src = loader.getAttribute('data-castle-src');
+    document.getElementsByTagName('head')[0].appendChild(script);
+
+    var helpers = loader.castleLoginHelpers;
+    if (helpers) {
+        helpers.nextStepCallback(function () {
+            _castle('createRequestToken').then(function (requestToken) {
+                helpers.setHiddenCallback('request_token', requestToken);
+            });
+        });
+    } else {
+        var submitButton = document.getElementsByClassName('btn-primary')[0];
+        submitButton.addEventListener('click', function () {
+            _castle('createRequestToken').then(function (requestToken) {
+                document.getElementById('request_token').value = requestToken;
+                document.getElementById('loginButton_0').click();
+            });
+        }, false);
+    }
+})();
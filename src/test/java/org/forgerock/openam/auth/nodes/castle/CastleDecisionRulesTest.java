@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.forgerock.json.JsonValue;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class CastleDecisionRulesTest {
+
+    private static final CastleDecisionRules RULES = CastleDecisionRules.of(Arrays.asList(
+            "Block: risk >= 0.9",
+            "Deny: action = deny",
+            "Proxy: signal = #proxy_ip|#tor_ip & risk > 0.5",
+            "Quiet: signal = none & risk < 0.2",
+            "Known: device.token = trusted-device",
+            "Review: action = challenge|deny & action = challenge"));
+
+    @Test
+    public void routesToTheFirstMatchingRule() {
+        assertEquals("Block", RULES.route(response(0.95, "deny", "#proxy_ip")));
+        assertEquals("Deny", RULES.route(response(0.5, "deny")));
+        assertEquals("Proxy", RULES.route(response(0.6, "allow", "#tor_ip")));
+        assertEquals("Quiet", RULES.route(response(0.1, "allow")));
+        assertEquals("Review", RULES.route(response(0.4, "challenge", "#new_device")));
+    }
+
+    @Test
+    public void keepsRiskBoundsStrictWhereConfigured() {
+        assertEquals(CastleHelper.NONE_TRIGGERED, RULES.route(response(0.5, "allow", "#proxy_ip")));
+        assertEquals(CastleHelper.NONE_TRIGGERED, RULES.route(response(0.2, "allow")));
+        assertEquals("Block", RULES.route(response(0.9, "allow")));
+    }
+
+    @Test
+    public void matchesActionsWhateverTheirCase() {
+        assertEquals("Deny", RULES.route(response(0.5, "DENY")));
+        assertEquals("Review", RULES.route(response(0.5, "CHALLENGE", "#new_device")));
+        assertEquals("Deny", CastleDecisionRules.of(Collections.singletonList("Deny: action = Deny"))
+                .route(response(0.5, "deny")));
+    }
+
+    @Test
+    public void matchesDeviceFields() {
+        JsonValue response = JsonValue.json(ImmutableMap.of(
+                CastleHelper.RISK, 0.5,
+                CastleHelper.DEVICE, ImmutableMap.of(CastleHelper.TOKEN, "trusted-device")));
+
+        assertEquals("Known", RULES.route(response));
+    }
+
+    @Test
+    public void listsOutcomesInOrderFollowedByNoneTriggered() {
+        assertEquals(Arrays.asList("Block", "Deny", CastleHelper.NONE_TRIGGERED),
+                CastleDecisionRules.outcomesOf(Arrays.asList("Block: risk >= 0.9", "Deny: action = deny",
+                        "Block: signal = #tor_ip")));
+    }
+
+    @Test
+    public void matchesARuleWithoutConditions() {
+        assertEquals("Always", CastleDecisionRules.of(Collections.singletonList("Always"))
+                .route(JsonValue.json(JsonValue.object())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsARuleWithoutOutcome() {
+        CastleDecisionRules.validate(": risk > 0.5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidRisk() {
+        CastleDecisionRules.validate("High: risk >= high");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownCondition() {
+        CastleDecisionRules.validate("High: score >= 0.5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAConditionWithoutValues() {
+        CastleDecisionRules.validate("Deny: action = |");
+    }
+
+    private static JsonValue response(double risk, String action, String... signals) {
+        ImmutableMap.Builder<Object, Object> triggered = ImmutableMap.builder();
+        for (String signal : signals) {
+            triggered.put(signal, ImmutableMap.of());
+        }
+        return JsonValue.json(ImmutableMap.of(
+                CastleHelper.RISK, risk,
+                CastleHelper.POLICY, ImmutableMap.of(CastleHelper.ACTION, action),
+                CastleHelper.SIGNALS, triggered.build()));
+    }
+}
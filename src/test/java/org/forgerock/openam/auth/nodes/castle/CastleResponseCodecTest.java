@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2020 ForgeRock AS.
+ */
+
+package org.forgerock.openam.auth.nodes.castle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class CastleResponseCodecTest {
+
+    @Test
+    public void roundTripsATrimmedResponse() {
+        Map<String, Object> signals = new LinkedHashMap<>();
+        signals.put("#new_device", Collections.emptyMap());
+        signals.put("#some_future_signal", Collections.emptyMap());
+        JsonValue response = JsonValue.json(ImmutableMap.of(
+                CastleHelper.RISK, 0.42,
+                CastleHelper.SIGNALS, signals,
+                CastleHelper.POLICY, ImmutableMap.of(CastleHelper.ACTION, "challenge"),
+                CastleHelper.DEVICE, ImmutableMap.of(CastleHelper.TOKEN, "device-token")));
+
+        String encoded = CastleResponseCodec.encode(response, false);
+        JsonValue decoded = CastleResponseCodec.decode(encoded);
+
+        assertTrue(CastleResponseCodec.isEncoded(JsonValue.json(encoded)));
+        assertEquals(0.42, decoded.get(CastleHelper.RISK).asDouble(), 0);
+        assertEquals("challenge", decoded.get(CastleHelper.POLICY).get(CastleHelper.ACTION).asString());
+        assertEquals(signals.keySet(), decoded.get(CastleHelper.SIGNALS).keys());
+        assertEquals("device-token", decoded.get(CastleHelper.DEVICE).get(CastleHelper.TOKEN).asString());
+        assertNull(decoded.get(CastleHelper.POLICY).get("id").getObject());
+    }
+
+    @Test
+    public void keepsIntegralRisksAsIntegers() {
+        JsonValue response = JsonValue.json(ImmutableMap.of(CastleHelper.RISK, 1));
+
+        JsonValue decoded = CastleResponseCodec.decode(CastleResponseCodec.encode(response, false));
+
+        assertEquals(1, decoded.get(CastleHelper.RISK).getObject());
+        assertFalse(decoded.isDefined(CastleHelper.POLICY));
+    }
+
+    @Test
+    public void restoresTheFallbackMarkersOfATrimmedResponse() {
+        JsonValue fallback = JsonValue.json(ImmutableMap.of(
+                CastleHelper.RISK, 0.5,
+                CastleHelper.SIGNALS, ImmutableMap.of(),
+                CastleHelper.POLICY, ImmutableMap.of(
+                        CastleHelper.ACTION, "CHALLENGE",
+                        "id", CastleRequestNode.FALLBACK,
+                        "revision_id", CastleRequestNode.FALLBACK,
+                        "name", CastleRequestNode.FALLBACK),
+                CastleHelper.DEVICE, ImmutableMap.of()));
+
+        JsonValue decoded = CastleResponseCodec.decode(CastleResponseCodec.encode(fallback, false));
+
+        JsonValue policy = decoded.get(CastleHelper.POLICY);
+        assertEquals("CHALLENGE", policy.get(CastleHelper.ACTION).asString());
+        assertEquals(CastleRequestNode.FALLBACK, policy.get("id").asString());
+        assertEquals(CastleRequestNode.FALLBACK, policy.get("revision_id").asString());
+        assertEquals(CastleRequestNode.FALLBACK, policy.get("name").asString());
+        assertTrue(decoded.get(CastleHelper.DEVICE).isMap());
+    }
+
+    @Test
+    public void roundTripsAFullResponse() {
+        JsonValue response = JsonValue.json(ImmutableMap.of(
+                CastleHelper.RISK, 0.9,
+                CastleHelper.POLICY, ImmutableMap.of(CastleHelper.ACTION, "deny", "id", "policy-1",
+                        "name", "Block bots"),
+                CastleHelper.DEVICE, ImmutableMap.of(CastleHelper.TOKEN, "device-token")));
+
+        JsonValue decoded = CastleResponseCodec.decode(CastleResponseCodec.encode(response, true));
+
+        assertEquals(0.9, decoded.get(CastleHelper.RISK).asDouble(), 0);
+        assertEquals("deny", decoded.get(CastleHelper.POLICY).get(CastleHelper.ACTION).asString());
+        assertEquals("policy-1", decoded.get(CastleHelper.POLICY).get("id").asString());
+        assertEquals("Block bots", decoded.get(CastleHelper.POLICY).get("name").asString());
+        assertEquals("device-token", decoded.get(CastleHelper.DEVICE).get(CastleHelper.TOKEN).asString());
+    }
+
+    @Test
+    public void doesNotTakePlainValuesForEncodedResponses() {
+        assertFalse(CastleResponseCodec.isEncoded(JsonValue.json("{\"risk\":0.1}")));
+        assertFalse(CastleResponseCodec.isEncoded(JsonValue.json(ImmutableMap.of(CastleHelper.RISK, 0.1))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidEncodedResponse() {
+        CastleResponseCodec.decode("c1z:not-deflated");
+    }
+}